@@ -208,7 +208,7 @@ public class Ikayaki extends JFrame {
         setLayout(new BorderLayout());
         setJMenuBar(main.getMenuBar());
         add(main, "Center");
-        //add(main.getStatusBar(), "South");    // TODO: there is no status bar
+        add(main.getStatusBar(), "South");
 
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         pack();
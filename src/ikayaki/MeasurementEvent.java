@@ -46,6 +46,11 @@ public class MeasurementEvent extends EventObject {
      */
     private Type type;
 
+    /**
+     * A message describing the event, or null if there is none.
+     */
+    private String message;
+
     /**
      * Creates a new measurement event.
      *
@@ -55,6 +60,19 @@ public class MeasurementEvent extends EventObject {
      * @throws NullPointerException if project or type is null.
      */
     public MeasurementEvent(Project project, MeasurementStep step, Type type) {
+        this(project, step, type, null);
+    }
+
+    /**
+     * Creates a new measurement event with a message.
+     *
+     * @param project the project whose measurement sent this event.
+     * @param step    the measurement that sent this event.
+     * @param type    the type of event this is.
+     * @param message a message describing the event, or null.
+     * @throws NullPointerException if project or type is null.
+     */
+    public MeasurementEvent(Project project, MeasurementStep step, Type type, String message) {
         super(project);
         if (project == null || /* step == null || */ type == null) {
             throw new NullPointerException();
@@ -62,6 +80,7 @@ public class MeasurementEvent extends EventObject {
         this.project = project;
         this.step = step;
         this.type = type;
+        this.message = message;
     }
 
     /**
@@ -85,6 +104,14 @@ public class MeasurementEvent extends EventObject {
         return type;
     }
 
+    /**
+     * Returns a message describing the event, or null if there is none. For AUTO_STOPPED events, tells why the
+     * measurement was stopped.
+     */
+    public String getMessage() {
+        return message;
+    }
+
     /**
      * The type of a measurement event.
      */
@@ -97,6 +124,7 @@ public class MeasurementEvent extends EventObject {
         HANDLER_STOP,
         DEMAGNETIZE_START,
         DEMAGNETIZE_END,
-        VALUE_MEASURED
+        VALUE_MEASURED,
+        AUTO_STOPPED
     }
 }
\ No newline at end of file
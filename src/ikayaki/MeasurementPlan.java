@@ -0,0 +1,604 @@
+/*
+ * MeasurementPlan.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki;
+
+import ikayaki.squid.Squid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static ikayaki.MeasurementPlan.Type.*;
+import static ikayaki.MeasurementResult.Type.NOISE;
+import static ikayaki.MeasurementResult.Type.SAMPLE;
+
+/**
+ * The list of device operations that are needed for measuring one step. The plan is only a description; it is executed
+ * by the measurement thread of a Project. Plans can be transformed before they are executed, for example to remove
+ * rotations that would not move the handler.
+ * <p/>
+ * The plan also defines which of its operations may be run concurrently: two operations may be run at the same time,
+ * unless {@link Operation#conflictsWith(Operation)} says otherwise.
+ *
+ * @author agent
+ */
+public class MeasurementPlan implements Iterable<MeasurementPlan.Operation> {
+
+    /**
+     * Marks that the handler's rotation or position is not known.
+     */
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    /**
+     * Steps with a smaller value than this (in mT) will not be demagnetized.
+     */
+    public static final double MIN_DEMAG_VALUE = 0.05;
+
+    /**
+     * The default rotation angles at which the sample is measured on every full rotation.
+     */
+    private static final int[] QUARTER_TURNS = {0, 90, 180, 270};
+
+    /**
+     * The operations of this plan in the order of execution.
+     */
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    /**
+     * The rotation of the handler after the operations added so far, or UNKNOWN if it has not been rotated.
+     */
+    private int rotation = UNKNOWN;
+
+    /**
+     * The full rotation to which the operations added from now on belong, or 0 if they do not belong to any.
+     */
+    private int cycle = 0;
+
+    /**
+     * Creates an empty plan.
+     */
+    public MeasurementPlan() {
+    }
+
+    /**
+     * Creates the default plan for measuring one step: demagnetizing the sample (if needed), measuring the background
+     * noise, measuring the sample at the specified number of full rotations and measuring the background noise again.
+     *
+     * @param stepValue  the step's demagnetization amplitude in mT.
+     * @param degaussing true if the project's type allows demagnetizing.
+     * @param rotations  the number of full rotations to measure the sample at; 0 means measuring only at 0 degrees.
+     * @return a new plan.
+     */
+    public static MeasurementPlan forStep(double stepValue, boolean degaussing, int rotations) {
+        return forStep(stepValue, degaussing, rotations, true);
+    }
+
+    /**
+     * Creates the default plan for measuring one step, optionally without the opening background reading. The opening
+     * background can be left out when the closing background of the previous step is reused in its place. Then also
+     * the magnetometer will not be reset, so that the reused reading stays comparable with the readings of this step.
+     *
+     * @param stepValue         the step's demagnetization amplitude in mT.
+     * @param degaussing        true if the project's type allows demagnetizing.
+     * @param rotations         the number of full rotations to measure the sample at; 0 means measuring only at 0
+     *                          degrees.
+     * @param openingBackground true to measure the background noise before the sample, false to leave it out.
+     * @return a new plan.
+     */
+    public static MeasurementPlan forStep(double stepValue, boolean degaussing, int rotations,
+                                          boolean openingBackground) {
+        return forStep(stepValue, degaussing, rotations, openingBackground, false);
+    }
+
+    /**
+     * Creates the default plan for measuring one step, optionally with continuous rotation. With continuous rotation
+     * the handler is not rotated back to 0 degrees between the full rotations, but it keeps rotating forward from 270
+     * degrees to 360 (which is 0 again), 450 and so on. The rotation back to 0 degrees, which may seek home, is then
+     * done only once after the last reading of the sample. The readings are recorded at the angles modulo 360.
+     *
+     * @param stepValue          the step's demagnetization amplitude in mT.
+     * @param degaussing         true if the project's type allows demagnetizing.
+     * @param rotations          the number of full rotations to measure the sample at; 0 means measuring only at 0
+     *                           degrees.
+     * @param openingBackground  true to measure the background noise before the sample, false to leave it out.
+     * @param continuousRotation true to keep rotating forward between the full rotations.
+     * @return a new plan.
+     */
+    public static MeasurementPlan forStep(double stepValue, boolean degaussing, int rotations,
+                                          boolean openingBackground, boolean continuousRotation) {
+        return forStep(stepValue, degaussing, rotations, openingBackground, continuousRotation, QUARTER_TURNS);
+    }
+
+    /**
+     * Creates the default plan for measuring one step, with the sample measured at the specified angles on every full
+     * rotation. For example three angles 120 degrees apart may be used for a quick measurement and eight angles 45
+     * degrees apart for a weak sample. The handler always rotates forward, so the angles should be in ascending order.
+     * The results are combined by least squares (see {@link MeasurementStep#getOffset()}), so the angles do not need to
+     * be evenly spaced.
+     *
+     * @param stepValue          the step's demagnetization amplitude in mT.
+     * @param degaussing         true if the project's type allows demagnetizing.
+     * @param rotations          the number of full rotations to measure the sample at; 0 means measuring only at 0
+     *                           degrees.
+     * @param openingBackground  true to measure the background noise before the sample, false to leave it out.
+     * @param continuousRotation true to keep rotating forward between the full rotations.
+     * @param angles             the angles in degrees (0..359) at which the sample is measured on every full rotation.
+     * @return a new plan.
+     * @throws IllegalArgumentException if angles is empty or an angle is not in range 0..359.
+     */
+    public static MeasurementPlan forStep(double stepValue, boolean degaussing, int rotations,
+                                          boolean openingBackground, boolean continuousRotation, int[] angles) {
+        if (angles.length == 0) {
+            throw new IllegalArgumentException("No angles");
+        }
+        for (int angle : angles) {
+            if (angle < 0 || angle >= 360) {
+                throw new IllegalArgumentException("angle = " + angle);
+            }
+        }
+        MeasurementPlan plan = new MeasurementPlan();
+
+        // reset the equipment
+        plan.rotate(0).checkpoint();
+
+        // demagnetize Z, Y and X (the X axis is demagnetized with the Y coil at 90 degrees)
+        if (isDemagnetized(stepValue, degaussing)) {
+            plan.move(Position.DEGAUSSER_Z).checkpoint();
+            plan.demagnetize('Z', stepValue).checkpoint();
+            plan.move(Position.DEGAUSSER_Y).checkpoint();
+            plan.demagnetize('Y', stepValue).checkpoint();
+            plan.rotate(90).checkpoint();
+            plan.demagnetize('Y', stepValue).checkpoint();
+            plan.rotate(0).checkpoint();
+        }
+
+        // measure first background noise
+        if (openingBackground) {
+            plan.move(Position.BACKGROUND).reset().read(NOISE).checkpoint();
+        }
+
+        // measure the sample
+        plan.move(Position.MEASUREMENT).checkpoint();
+        if (rotations == 0) {
+            plan.read(SAMPLE).checkpoint();
+        } else {
+            for (int i = 0; i < rotations; i++) {
+                plan.beginCycle(i + 1);
+                int base = continuousRotation ? i * 360 : 0;
+                for (int angle : angles) {
+                    if (plan.rotation != base + angle) {
+                        plan.rotate(base + angle).checkpoint();
+                    }
+                    plan.read(SAMPLE).checkpoint();
+                }
+                if (!continuousRotation) {
+                    plan.rotate(0).checkpoint();
+                }
+                plan.endCycle();
+            }
+            if (continuousRotation) {
+                plan.rotate(0).checkpoint();
+            }
+        }
+
+        // measure second background noise
+        plan.move(Position.BACKGROUND).checkpoint();
+        plan.read(NOISE).checkpoint();
+        return plan;
+    }
+
+    /**
+     * Tells whether the step would be demagnetized by the default plan.
+     *
+     * @param stepValue  the step's demagnetization amplitude in mT.
+     * @param degaussing true if the project's type allows demagnetizing.
+     */
+    public static boolean isDemagnetized(double stepValue, boolean degaussing) {
+        return stepValue > MIN_DEMAG_VALUE && degaussing;
+    }
+
+    /**
+     * Appends an operation for moving the handler.
+     *
+     * @return this plan.
+     */
+    public MeasurementPlan move(Position position) {
+        return add(new Operation(MOVE, position, UNKNOWN, ' ', 0.0, null, cycle));
+    }
+
+    /**
+     * Appends an operation for rotating the handler. Subsequent readings will be recorded at this angle modulo 360.
+     * Angles of 360 or more continue the rotation forward without seeking home (see Handler.rotateTo).
+     *
+     * @return this plan.
+     */
+    public MeasurementPlan rotate(int angle) {
+        rotation = angle;
+        return add(new Operation(ROTATE, null, angle, ' ', 0.0, null, cycle));
+    }
+
+    /**
+     * Appends an operation for demagnetizing with one of the degausser's coils.
+     *
+     * @param axis      the coil, 'Z' or 'Y'.
+     * @param amplitude the amplitude in mT.
+     * @return this plan.
+     * @throws IllegalArgumentException if the axis is not 'Z' or 'Y'.
+     */
+    public MeasurementPlan demagnetize(char axis, double amplitude) {
+        if (axis != 'Z' && axis != 'Y') {
+            throw new IllegalArgumentException("axis = " + axis);
+        }
+        return add(new Operation(DEMAG, null, UNKNOWN, axis, amplitude, null, cycle));
+    }
+
+    /**
+     * Appends an operation for pulsing the feedback loops and clearing the flux counters of the magnetometer.
+     *
+     * @return this plan.
+     */
+    public MeasurementPlan reset() {
+        return add(new Operation(RESET, null, UNKNOWN, ' ', 0.0, null, cycle));
+    }
+
+    /**
+     * Appends an operation for reading the magnetometer. The result will be recorded at the angle of the last
+     * rotation modulo 360, or 0 if there have been no rotations.
+     *
+     * @param resultType the type of the measurement result.
+     * @return this plan.
+     */
+    public MeasurementPlan read(MeasurementResult.Type resultType) {
+        return add(new Operation(READ, null, rotation == UNKNOWN ? 0 : rotation % 360, ' ', 0.0, resultType, cycle));
+    }
+
+    /**
+     * Appends a checkpoint, where the measurement may be aborted. A checkpoint is run only after all preceding
+     * operations are finished, and the following operations are begun only after it.
+     *
+     * @return this plan.
+     */
+    public MeasurementPlan checkpoint() {
+        return add(new Operation(CHECKPOINT, null, UNKNOWN, ' ', 0.0, null, cycle));
+    }
+
+    /**
+     * Begins a full rotation. The operations added after this belong to the specified rotation, until endCycle() is
+     * called. When the measurement of a step is ended early, the operations of the rotations after the last measured
+     * one are skipped.
+     *
+     * @param cycle the number of the full rotation, starting from 1.
+     * @return this plan.
+     * @throws IllegalArgumentException if cycle is less than 1.
+     */
+    public MeasurementPlan beginCycle(int cycle) {
+        if (cycle < 1) {
+            throw new IllegalArgumentException("cycle = " + cycle);
+        }
+        this.cycle = cycle;
+        return this;
+    }
+
+    /**
+     * Ends the current full rotation by appending a CYCLE_END operation. It works like a checkpoint, and it is where
+     * the measurement may decide to skip the remaining rotations. The operations added after this do not belong to any
+     * rotation.
+     *
+     * @return this plan.
+     * @throws IllegalStateException if no rotation has been begun.
+     */
+    public MeasurementPlan endCycle() {
+        if (cycle == 0) {
+            throw new IllegalStateException("No cycle has been begun");
+        }
+        add(new Operation(CYCLE_END, null, UNKNOWN, ' ', 0.0, null, cycle));
+        cycle = 0;
+        return this;
+    }
+
+    /**
+     * Returns the number of full rotations in this plan.
+     */
+    public int getCycles() {
+        int cycles = 0;
+        for (Operation op : operations) {
+            cycles = Math.max(cycles, op.getCycle());
+        }
+        return cycles;
+    }
+
+    private MeasurementPlan add(Operation operation) {
+        operations.add(operation);
+        return this;
+    }
+
+    /**
+     * Returns the operations of this plan in the order of execution.
+     */
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    public Iterator<Operation> iterator() {
+        return getOperations().iterator();
+    }
+
+    /**
+     * Returns the number of operations in this plan.
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * Returns a copy of this plan with all the optimizing transformations applied.
+     *
+     * @param initialRotation the rotation of the handler before executing the plan, or UNKNOWN.
+     * @param initialPosition the position of the handler before executing the plan, or null if not known.
+     * @return an optimized plan.
+     */
+    public MeasurementPlan optimize(int initialRotation, Position initialPosition) {
+        return withoutRedundantRotations(initialRotation).withMergedMoves(initialPosition);
+    }
+
+    /**
+     * Returns a copy of this plan without rotations that would not turn the handler: rotations to the angle where the
+     * handler already is, and rotations that are immediately followed by another rotation.
+     *
+     * @param initialRotation the rotation of the handler before executing the plan, or UNKNOWN.
+     * @return a transformed plan.
+     */
+    public MeasurementPlan withoutRedundantRotations(int initialRotation) {
+        MeasurementPlan result = new MeasurementPlan();
+        result.rotation = rotation;
+        int current = initialRotation;
+        for (int i = 0; i < operations.size(); i++) {
+            Operation op = operations.get(i);
+            if (op.getType() == ROTATE) {
+                Operation next = nextAction(i);
+                if (op.getAngle() == current || (next != null && next.getType() == ROTATE)) {
+                    continue;
+                }
+                current = op.getAngle();
+            }
+            result.add(op);
+        }
+        return result.withoutRedundantCheckpoints();
+    }
+
+    /**
+     * Returns a copy of this plan without moves that would not move the handler: moves to the position where the
+     * handler already is, and moves that are immediately followed by another move.
+     *
+     * @param initialPosition the position of the handler before executing the plan, or null if not known.
+     * @return a transformed plan.
+     */
+    public MeasurementPlan withMergedMoves(Position initialPosition) {
+        MeasurementPlan result = new MeasurementPlan();
+        result.rotation = rotation;
+        Position current = initialPosition;
+        for (int i = 0; i < operations.size(); i++) {
+            Operation op = operations.get(i);
+            if (op.getType() == MOVE) {
+                Operation next = nextAction(i);
+                if (op.getPosition() == current || (next != null && next.getType() == MOVE)) {
+                    continue;
+                }
+                current = op.getPosition();
+            }
+            result.add(op);
+        }
+        return result.withoutRedundantCheckpoints();
+    }
+
+    /**
+     * Returns a copy of this plan where consecutive checkpoints have been replaced with one.
+     */
+    private MeasurementPlan withoutRedundantCheckpoints() {
+        MeasurementPlan result = new MeasurementPlan();
+        result.rotation = rotation;
+        Operation previous = null;
+        for (Operation op : operations) {
+            if (op.getType() == CHECKPOINT && previous != null && previous.getType() == CHECKPOINT) {
+                continue;
+            }
+            result.add(op);
+            previous = op;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the first operation after the specified index which is not a checkpoint, or null if there is none.
+     */
+    private Operation nextAction(int index) {
+        for (int i = index + 1; i < operations.size(); i++) {
+            if (operations.get(i).getType() != CHECKPOINT) {
+                return operations.get(i);
+            }
+        }
+        return null;
+    }
+
+    public String toString() {
+        return operations.toString();
+    }
+
+    /**
+     * One operation of a measurement plan. Operations are immutable.
+     *
+     * @author agent
+     */
+    public static class Operation {
+
+        private final Type type;
+        private final Position position;
+        private final int angle;
+        private final char axis;
+        private final double amplitude;
+        private final MeasurementResult.Type resultType;
+        private final int cycle;
+
+        private Operation(Type type, Position position, int angle, char axis, double amplitude,
+                          MeasurementResult.Type resultType, int cycle) {
+            this.cycle = cycle;
+            this.type = type;
+            this.position = position;
+            this.angle = angle;
+            this.axis = axis;
+            this.amplitude = amplitude;
+            this.resultType = resultType;
+        }
+
+        /**
+         * Returns the type of this operation.
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Returns the target position of a MOVE operation, otherwise null.
+         */
+        public Position getPosition() {
+            return position;
+        }
+
+        /**
+         * Returns the target angle of a ROTATE operation, or the angle at which a READ operation is recorded, otherwise
+         * UNKNOWN.
+         */
+        public int getAngle() {
+            return angle;
+        }
+
+        /**
+         * Returns the coil ('Z' or 'Y') of a DEMAG operation.
+         */
+        public char getAxis() {
+            return axis;
+        }
+
+        /**
+         * Returns the amplitude in mT of a DEMAG operation.
+         */
+        public double getAmplitude() {
+            return amplitude;
+        }
+
+        /**
+         * Returns the result type of a READ operation, otherwise null.
+         */
+        public MeasurementResult.Type getResultType() {
+            return resultType;
+        }
+
+        /**
+         * Returns the full rotation to which this operation belongs, starting from 1, or 0 if it does not belong to
+         * any.
+         */
+        public int getCycle() {
+            return cycle;
+        }
+
+        /**
+         * Tells whether this operation is a CHECKPOINT or a CYCLE_END, which are run only after all preceding
+         * operations are finished and which use no devices.
+         */
+        public boolean isCheckpoint() {
+            return type == CHECKPOINT || type == CYCLE_END;
+        }
+
+        /**
+         * Returns the device used by this operation, or null for checkpoints.
+         */
+        public Squid.Device getDevice() {
+            switch (type) {
+            case MOVE:
+            case ROTATE:
+                return Squid.Device.HANDLER;
+            case DEMAG:
+                return Squid.Device.DEGAUSSER;
+            case RESET:
+            case READ:
+                return Squid.Device.MAGNETOMETER;
+            default:
+                return null;
+            }
+        }
+
+        /**
+         * Tells whether this operation must not be run at the same time as the other operation. Operations on the same
+         * device conflict, and so does everything with a checkpoint. Between devices, the sample must not move while it
+         * is being demagnetized or read, and the degausser's field would disturb the magnetometer. Only resetting the
+         * magnetometer while the handler is moving is allowed.
+         *
+         * @param other the other operation.
+         * @return true if the operations must be run one after another.
+         */
+        public boolean conflictsWith(Operation other) {
+            Squid.Device a = getDevice();
+            Squid.Device b = other.getDevice();
+            if (a == null || b == null || a == b) {
+                return true;
+            }
+            if (a == Squid.Device.DEGAUSSER || b == Squid.Device.DEGAUSSER) {
+                return true;
+            }
+            // handler and magnetometer
+            return type == READ || other.type == READ;
+        }
+
+        public String toString() {
+            switch (type) {
+            case MOVE:
+                return type + " " + position;
+            case ROTATE:
+                return type + " " + angle;
+            case DEMAG:
+                return type + " " + axis + " " + amplitude;
+            case READ:
+                return type + " " + resultType + " " + angle;
+            case CYCLE_END:
+                return type + " " + cycle;
+            default:
+                return type.toString();
+            }
+        }
+    }
+
+    /**
+     * The types of plan operations.
+     */
+    public enum Type {
+        MOVE, ROTATE, DEMAG, RESET, READ, CHECKPOINT, CYCLE_END
+    }
+
+    /**
+     * The positions where the handler can be moved to during a measurement.
+     */
+    public enum Position {
+        DEGAUSSER_Z, DEGAUSSER_Y, BACKGROUND, MEASUREMENT
+    }
+}
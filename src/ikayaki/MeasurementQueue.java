@@ -0,0 +1,418 @@
+/*
+ * MeasurementQueue.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki;
+
+import ikayaki.squid.Squid;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.EventListenerList;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ikayaki.MeasurementEvent.Type.AUTO_STOPPED;
+import static ikayaki.MeasurementEvent.Type.STEP_ABORTED;
+import static ikayaki.ProjectEvent.Type.STATE_CHANGED;
+
+/**
+ * A queue of projects which will be measured one after another with the same Squid. Every entry of the queue measures
+ * the pending steps of a project up to a given step. Before each entry the operator must confirm that the sample has
+ * been changed, after which the queue gives the Squid to the entry's project and starts an auto step measurement.
+ * <p/>
+ * The queue also keeps account of how much of the time since it was first started the instrument has been measuring
+ * and how much it has been waiting for the operator.
+ * <p/>
+ * All operations are thread-safe.
+ *
+ * @author agent
+ */
+public class MeasurementQueue {
+
+    /**
+     * The Squid that will be given to the projects.
+     */
+    private final Squid squid;
+
+    /**
+     * The entries which are not yet finished. The first entry is the one being measured or waiting for confirmation.
+     */
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * The state of the queue.
+     */
+    private State state = State.IDLE;
+
+    /**
+     * true if the running measurement was aborted.
+     */
+    private boolean aborted = false;
+
+    /**
+     * true if the running measurement was stopped by the project's auto stop rules.
+     */
+    private boolean autoStopped = false;
+
+    /**
+     * true if the queue should stop after the running measurement.
+     */
+    private boolean stopRequested = false;
+
+    /**
+     * The time (as given by System.nanoTime()) when the queue was first started, or -1 if it has not been started.
+     */
+    private long sessionStart = -1;
+
+    /**
+     * The time (as given by System.nanoTime()) when the running measurement was started.
+     */
+    private long busySince;
+
+    /**
+     * The total time in nanoseconds of the finished measurements.
+     */
+    private long busyNanos = 0;
+
+    /**
+     * Listens to the project being measured, to know when its measurement ends.
+     */
+    private final ProjectListener projectListener = new ProjectListener() {
+        public void projectUpdated(ProjectEvent event) {
+            if (event.getType() == STATE_CHANGED) {
+                measurementStateChanged(event.getProject());
+            }
+        }
+    };
+
+    /**
+     * Listens to the project being measured, to know whether its measurement was aborted or stopped automatically.
+     */
+    private final MeasurementListener measurementListener = new MeasurementListener() {
+        public void measurementUpdated(MeasurementEvent event) {
+            if (event.getType() == STEP_ABORTED) {
+                synchronized (MeasurementQueue.this) {
+                    aborted = true;
+                }
+            } else if (event.getType() == AUTO_STOPPED) {
+                synchronized (MeasurementQueue.this) {
+                    autoStopped = true;
+                }
+            }
+        }
+    };
+
+    private final EventListenerList listenerList = new EventListenerList();
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param squid the Squid with which the projects will be measured.
+     * @throws NullPointerException if squid is null.
+     */
+    public MeasurementQueue(Squid squid) {
+        if (squid == null) {
+            throw new NullPointerException();
+        }
+        this.squid = squid;
+    }
+
+    /**
+     * Appends a project to the end of the queue. All of its pending steps will be measured.
+     *
+     * @param project the project to be measured.
+     * @return true if the project was added, false if it is closed.
+     * @throws NullPointerException if project is null.
+     */
+    public boolean add(Project project) {
+        return add(project, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Appends a project to the end of the queue. Its pending steps will be measured up to, but not including, the
+     * specified step.
+     *
+     * @param project the project to be measured.
+     * @param endStep the index of the first step that will not be measured.
+     * @return true if the project was added, false if it is closed or has no pending steps before endStep.
+     * @throws NullPointerException if project is null.
+     */
+    public synchronized boolean add(Project project, int endStep) {
+        if (project == null) {
+            throw new NullPointerException();
+        }
+        if (project.isClosed() || endStep <= project.getCompletedSteps()) {
+            return false;
+        }
+        entries.add(new Entry(project, endStep));
+        fireStateChanged();
+        return true;
+    }
+
+    /**
+     * Removes an entry from the queue. The entry being measured can not be removed.
+     *
+     * @param index the index of the entry.
+     * @return true if the entry was removed, otherwise false.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public synchronized boolean remove(int index) {
+        if (index == 0 && state == State.MEASURING) {
+            return false;
+        }
+        entries.remove(index);
+        if (entries.size() == 0 && state == State.WAITING) {
+            state = State.IDLE;
+        }
+        fireStateChanged();
+        return true;
+    }
+
+    /**
+     * Returns a copy of the unfinished entries of this queue. The first entry is the one being measured or waiting for
+     * confirmation.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries);
+    }
+
+    /**
+     * Returns the state of this queue.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Starts the queue. The queue will then wait for the operator to confirm that the sample of the first entry has
+     * been inserted. Will do nothing if the queue is already started or is empty.
+     *
+     * @return true if the queue was started, otherwise false.
+     */
+    public synchronized boolean start() {
+        if (state != State.IDLE || entries.size() == 0) {
+            return false;
+        }
+        if (sessionStart < 0) {
+            sessionStart = System.nanoTime();
+        }
+        stopRequested = false;
+        state = State.WAITING;
+        fireStateChanged();
+        return true;
+    }
+
+    /**
+     * Stops the queue. If a measurement is running, it will be completed normally but the queue will not continue to
+     * the next entry after it.
+     */
+    public synchronized void stop() {
+        if (state == State.MEASURING) {
+            stopRequested = true;
+        } else if (state == State.WAITING) {
+            state = State.IDLE;
+            fireStateChanged();
+        }
+    }
+
+    /**
+     * Confirms that the sample of the first entry is in the handler, gives the Squid to the entry's project and starts
+     * its measurement. Will do nothing unless the queue is waiting for the confirmation.
+     *
+     * @return true if the measurement was started, false if the queue was not waiting for a confirmation or the
+     *         project could not be started (for example because another project has a measurement running).
+     */
+    public synchronized boolean confirmSampleChange() {
+        if (state != State.WAITING) {
+            return false;
+        }
+        Entry entry = entries.get(0);
+        Project project = entry.getProject();
+        if (project.isClosed()) {
+            entries.remove(0);
+            state = entries.size() > 0 ? State.WAITING : State.IDLE;
+            fireStateChanged();
+            return false;
+        }
+        if (!project.setSquid(squid)) {
+            return false;
+        }
+        project.addProjectListener(projectListener);
+        project.addMeasurementListener(measurementListener);
+        aborted = false;
+        autoStopped = false;
+        if (!project.doAutoStep(entry.getEndStep())) {
+            project.removeProjectListener(projectListener);
+            project.removeMeasurementListener(measurementListener);
+            return false;
+        }
+        busySince = System.nanoTime();
+        state = State.MEASURING;
+        fireStateChanged();
+        return true;
+    }
+
+    /**
+     * Called when the state of the project being measured has changed. When the project becomes idle, moves on to the
+     * next entry, unless the measurement was aborted or the queue was stopped. An entry whose measurement was stopped
+     * by the project's auto stop rules is finished, even though it has unmeasured steps.
+     */
+    private synchronized void measurementStateChanged(Project project) {
+        if (state != State.MEASURING || entries.size() == 0 || entries.get(0).getProject() != project) {
+            return;
+        }
+        if (project.getState() != Project.State.IDLE) {
+            return;
+        }
+        busyNanos += System.nanoTime() - busySince;
+        project.removeProjectListener(projectListener);
+        project.removeMeasurementListener(measurementListener);
+
+        Entry entry = entries.get(0);
+        if (entry.getPendingSteps() == 0 || autoStopped) {
+            entries.remove(0);
+        }
+        if (aborted || stopRequested || entries.size() == 0) {
+            state = State.IDLE;
+        } else {
+            state = State.WAITING;
+        }
+        fireStateChanged();
+    }
+
+    /**
+     * Returns the time in milliseconds that the instrument has been measuring the projects of this queue.
+     */
+    public synchronized long getBusyTime() {
+        long nanos = busyNanos;
+        if (state == State.MEASURING) {
+            nanos += System.nanoTime() - busySince;
+        }
+        return nanos / 1000000;
+    }
+
+    /**
+     * Returns the time in milliseconds since the queue was first started, during which the instrument has not been
+     * measuring.
+     */
+    public synchronized long getIdleTime() {
+        if (sessionStart < 0) {
+            return 0;
+        }
+        return (System.nanoTime() - sessionStart) / 1000000 - getBusyTime();
+    }
+
+    /**
+     * Returns the fraction of the time since the queue was first started, during which the instrument has been
+     * measuring.
+     *
+     * @return the utilization between 0.0 and 1.0, or NaN if the queue has not been started.
+     */
+    public synchronized double getUtilization() {
+        long busy = getBusyTime();
+        long total = busy + getIdleTime();
+        if (sessionStart < 0 || total <= 0) {
+            return Double.NaN;
+        }
+        return (double) busy / total;
+    }
+
+    /**
+     * Adds a ChangeListener which will be notified when the state or the entries of the queue change.
+     */
+    public void addChangeListener(ChangeListener l) {
+        synchronized (listenerList) {
+            listenerList.add(ChangeListener.class, l);
+        }
+    }
+
+    /**
+     * Removes a ChangeListener from the queue.
+     */
+    public void removeChangeListener(ChangeListener l) {
+        synchronized (listenerList) {
+            listenerList.remove(ChangeListener.class, l);
+        }
+    }
+
+    /**
+     * Notifies all listeners that have registered for ChangeEvents.
+     */
+    private void fireStateChanged() {
+        ChangeListener[] listeners;
+        synchronized (listenerList) {
+            listeners = listenerList.getListeners(ChangeListener.class);
+        }
+        ChangeEvent event = new ChangeEvent(this);
+        for (ChangeListener l : listeners) {
+            try {
+                l.stateChanged(event);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * One project in the queue, together with the step before which its measurement will stop.
+     *
+     * @author agent
+     */
+    public static class Entry {
+
+        private final Project project;
+        private final int endStep;
+
+        private Entry(Project project, int endStep) {
+            this.project = project;
+            this.endStep = endStep;
+        }
+
+        /**
+         * Returns the project to be measured.
+         */
+        public Project getProject() {
+            return project;
+        }
+
+        /**
+         * Returns the index of the first step that will not be measured.
+         */
+        public int getEndStep() {
+            return endStep;
+        }
+
+        /**
+         * Returns the number of steps which are still to be measured in this entry.
+         */
+        public int getPendingSteps() {
+            return Math.max(0, Math.min(endStep, project.getSteps()) - project.getCompletedSteps());
+        }
+    }
+
+    /**
+     * The states of a queue.
+     */
+    public enum State {
+        IDLE, WAITING, MEASURING
+    }
+}
@@ -53,6 +53,12 @@ public class MeasurementResult {
      */
     private final Vector3d rawVector = new Vector3d();
 
+    /**
+     * The standard errors of the raw measurements, calculated by the magnetometer from many samples. NaN if only one
+     * sample was read or the result was saved before the errors were recorded.
+     */
+    private final Vector3d rawError = new Vector3d(Double.NaN, Double.NaN, Double.NaN);
+
     /**
      * The measurements in sample coordinates. Has the rotation, noise and holder fixes applied to itself.
      */
@@ -78,6 +84,27 @@ public class MeasurementResult {
      * @throws IllegalArgumentException if the type is NOISE or HOLDER, but rotation is non-zero.
      */
     public MeasurementResult(Type type, int rotation, double x, double y, double z) {
+        this(type, rotation, x, y, z, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * Creates a new measurement result with the standard errors of the measurements. All units are mA/m.
+     * <p/>
+     * The sample and geographic coordinates are NOT set when a MeasurementResult is created.
+     *
+     * @param type     the type (background or rotation) of this result.
+     * @param rotation the rotation of the sample holder in degrees (0..360).
+     * @param x        the measured X coordinate value.
+     * @param y        the measured Y coordinate value.
+     * @param z        the measured Z coordinate value.
+     * @param errorX   the standard error of X, or NaN if not known.
+     * @param errorY   the standard error of Y, or NaN if not known.
+     * @param errorZ   the standard error of Z, or NaN if not known.
+     * @throws NullPointerException     if type is null.
+     * @throws IllegalArgumentException if the type is NOISE or HOLDER, but rotation is non-zero.
+     */
+    public MeasurementResult(Type type, int rotation, double x, double y, double z,
+                             double errorX, double errorY, double errorZ) {
         if (type == null) {
             throw new NullPointerException();
         }
@@ -87,6 +114,7 @@ public class MeasurementResult {
         this.type = type;
         this.rotation = rotation % 360;
         rawVector.set(x, y, z);
+        rawError.set(errorX, errorY, errorZ);
         applyFixes(null);
         setTransform(null);
     }
@@ -144,6 +172,17 @@ public class MeasurementResult {
             throw new IllegalArgumentException("Invalid x, y or z: " + e.getMessage(), e);
         }
 
+        // get the standard errors, missing from the results saved before they were recorded
+        if (element.hasAttribute("errorx")) {
+            try {
+                rawError.set(Double.parseDouble(element.getAttribute("errorx")),
+                        Double.parseDouble(element.getAttribute("errory")),
+                        Double.parseDouble(element.getAttribute("errorz")));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid errorx, errory or errorz: " + e.getMessage(), e);
+            }
+        }
+
         // initialize sampleVector and geographicVector
         applyFixes(null);
         setTransform(null);
@@ -162,13 +201,21 @@ public class MeasurementResult {
         element.setAttribute("x", Double.toString(rawVector.x));
         element.setAttribute("y", Double.toString(rawVector.y));
         element.setAttribute("z", Double.toString(rawVector.z));
+        if (!Double.isNaN(rawError.x) || !Double.isNaN(rawError.y) || !Double.isNaN(rawError.z)) {
+            element.setAttribute("errorx", Double.toString(rawError.x));
+            element.setAttribute("errory", Double.toString(rawError.y));
+            element.setAttribute("errorz", Double.toString(rawError.z));
+        }
 
         return element;
     }
 
     /**
-     * Applies the holder, noise and rotation fixes and saves the results as the sample vector. Resets the geographic
-     * vector to a copy of the sample vector. This method must be called before setTransform().
+     * Applies the holder, noise, offset and rotation fixes and saves the results as the sample vector. Resets the
+     * geographic vector to a copy of the sample vector. This method must be called before setTransform().
+     * <p/>
+     * The offset is fitted by the step from all of its sample results (see {@link MeasurementStep#getOffset()}), so the
+     * average of the sample vectors is the least squares estimate of the sample for any set of rotation angles.
      *
      * @param step the measurement step that includes the holder and noise calibration values. If null, the holder and
      *             noise fixes are not applied.
@@ -180,6 +227,11 @@ public class MeasurementResult {
             // apply the noise fix
             Vector3d noise = step.getNoise();
             sampleVector.sub(noise);
+
+            // apply the offset fix, only the sample results are rotated
+            if (type == Type.SAMPLE) {
+                sampleVector.sub(step.getOffset());
+            }
         }
 
         // apply rotation fix
@@ -352,6 +404,27 @@ public class MeasurementResult {
         return rawVector.z;
     }
 
+    /**
+     * Returns the standard error of the raw X coordinate, or NaN if it is not known.
+     */
+    public double getRawErrorX() {
+        return rawError.x;
+    }
+
+    /**
+     * Returns the standard error of the raw Y coordinate, or NaN if it is not known.
+     */
+    public double getRawErrorY() {
+        return rawError.y;
+    }
+
+    /**
+     * Returns the standard error of the raw Z coordinate, or NaN if it is not known.
+     */
+    public double getRawErrorZ() {
+        return rawError.z;
+    }
+
     /**
      * Returns a pointer to the raw vector. WARNING! No modification to the returned object should be made. They should
      * be done on a copy of the object than the object itself.
@@ -27,7 +27,10 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import javax.vecmath.Matrix3d;
+import javax.vecmath.Matrix4d;
+import javax.vecmath.SingularMatrixException;
 import javax.vecmath.Vector3d;
+import javax.vecmath.Vector4d;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
@@ -90,6 +93,33 @@ public class MeasurementStep implements Iterable<MeasurementResult> {
      */
     private final List<MeasurementResult> results = new ArrayList<MeasurementResult>();
 
+    /**
+     * The durations of the operations done while measuring this step, or null if they have not been recorded.
+     */
+    private StepTiming timing = null;
+
+    /**
+     * The number of full rotations at which the sample was measured, or -1 if it has not been recorded.
+     */
+    private int rotations = -1;
+
+    /**
+     * Why no more full rotations were measured, or null if it has not been recorded.
+     */
+    private RotationStop rotationStop = null;
+
+    /**
+     * The offset of the magnetometer's X and Y readings that does not rotate with the sample (raw values), fitted by
+     * least squares from the sample results. Updated by updateTransforms().
+     */
+    private final Vector3d offset = new Vector3d();
+
+    /**
+     * Tells whether the offset is fitted from the results. Only the steps that were measured at the project's rotation
+     * angles are fitted, so that the results of the steps measured before that stay as they were.
+     */
+    private boolean offsetFitted = false;
+
     /**
      * Creates a blank measurement step.
      */
@@ -178,6 +208,27 @@ public class MeasurementStep implements Iterable<MeasurementResult> {
             this.results.add(new MeasurementResult(result));
         }
 
+        // get timing, if it has been recorded
+        NodeList timings = element.getElementsByTagName("timing");
+        if (timings.getLength() > 0) {
+            timing = new StepTiming((Element) timings.item(0));
+        }
+
+        // get the number of rotations, if it has been recorded
+        s = element.getAttribute("rotations");
+        if (!s.equals("")) {
+            try {
+                rotations = Integer.parseInt(s);
+                rotationStop = RotationStop.valueOf(element.getAttribute("rotationstop"));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid rotations: " + s + " "
+                        + element.getAttribute("rotationstop"), e);
+            }
+        }
+
+        // the offset is fitted only for the steps that have been marked
+        offsetFitted = element.getAttribute("offsetfit").equals("1");
+
         // get state, must be done after getting results
         if (element.getAttribute("done").equals("1")) {
             state = DONE;
@@ -231,10 +282,20 @@ public class MeasurementStep implements Iterable<MeasurementResult> {
         element.setAttribute("mass", Double.toString(mass));
         element.setAttribute("volume", Double.toString(volume));
         element.setAttribute("susceptibility", Double.toString(susceptibility));
+        if (rotationStop != null) {
+            element.setAttribute("rotations", Integer.toString(rotations));
+            element.setAttribute("rotationstop", rotationStop.name());
+        }
+        if (offsetFitted) {
+            element.setAttribute("offsetfit", "1");
+        }
 
         for (MeasurementResult result : results) {
             element.appendChild(result.getElement(document));
         }
+        if (timing != null) {
+            element.appendChild(timing.getElement(document));
+        }
 
         return element;
     }
@@ -378,14 +439,15 @@ public class MeasurementStep implements Iterable<MeasurementResult> {
     }
 
     /**
-     * Updates all of the measurement results with the owner project's transformation matrix and applies the noise and
-     * holder fixes. If there is no owner, an identity matrix will be used.
+     * Updates all of the measurement results with the owner project's transformation matrix and applies the noise,
+     * offset and holder fixes. If there is no owner, an identity matrix will be used.
      */
     protected synchronized void updateTransforms() {
         Matrix3d transform = null;
         if (project != null) {
             transform = project.getTransform();
         }
+        fitOffset();
         for (MeasurementResult result : results) {
             result.applyFixes(this);
             result.setTransform(transform);
@@ -443,6 +505,88 @@ public class MeasurementStep implements Iterable<MeasurementResult> {
         save();
     }
 
+    /**
+     * Returns the durations of the operations done while measuring this step.
+     *
+     * @return the timing profile, or null if none has been recorded.
+     */
+    public synchronized StepTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * Records the duration of one operation done while measuring this step. Does not invoke autosaving, because the
+     * results are saved anyway when the step is done.
+     *
+     * @param operation the name of the operation type.
+     * @param nanos     the duration in nanoseconds.
+     * @throws IllegalStateException if the state is DONE or DONE_RECENTLY.
+     */
+    public synchronized void addTiming(String operation, long nanos) {
+        if (state.isDone()) {
+            throw new IllegalStateException("Unable to add timing, state is: " + state);
+        }
+        if (timing == null) {
+            timing = new StepTiming();
+        }
+        timing.add(operation, nanos);
+    }
+
+    /**
+     * Returns the number of full rotations at which the sample was measured, or -1 if it has not been recorded.
+     */
+    public synchronized int getRotations() {
+        return rotations;
+    }
+
+    /**
+     * Returns why no more full rotations were measured, or null if it has not been recorded.
+     */
+    public synchronized RotationStop getRotationStop() {
+        return rotationStop;
+    }
+
+    /**
+     * Records how many full rotations the sample was measured at and why no more were measured. Does not invoke
+     * autosaving, because the results are saved anyway when the step is done.
+     *
+     * @param rotations the number of full rotations that were measured.
+     * @param reason    why no more rotations were measured.
+     * @throws NullPointerException  if reason is null.
+     * @throws IllegalStateException if the state is DONE or DONE_RECENTLY.
+     */
+    public synchronized void setRotations(int rotations, RotationStop reason) {
+        if (reason == null) {
+            throw new NullPointerException();
+        }
+        if (state.isDone()) {
+            throw new IllegalStateException("Unable to set rotations, state is: " + state);
+        }
+        this.rotations = rotations;
+        this.rotationStop = reason;
+    }
+
+    /**
+     * Tells whether the offset is fitted from the results of this step. See {@link #getOffset()}.
+     */
+    public synchronized boolean isOffsetFitted() {
+        return offsetFitted;
+    }
+
+    /**
+     * Marks this step to be measured at the project's rotation angles, so that the offset will be fitted from its
+     * results. Does not invoke autosaving, because the results are saved anyway when the step is done.
+     *
+     * @throws IllegalStateException if the state is DONE or DONE_RECENTLY.
+     */
+    public synchronized void setOffsetFitted() {
+        if (state.isDone()) {
+            throw new IllegalStateException("Unable to set offset fitted, state is: " + state);
+        }
+        offsetFitted = true;
+        updateTransforms();
+    }
+
     /**
      * Called when the step's measurements are started. Sets the step's state to MEASURING.
      *
@@ -519,6 +663,81 @@ public class MeasurementStep implements Iterable<MeasurementResult> {
         return v;
     }
 
+    /**
+     * Returns the offset of the magnetometer's X and Y readings that does not rotate with the sample (raw values). The
+     * offset is fitted together with the sample's X and Y by least squares across all sample results, so that the
+     * readings at any set of rotation angles can be combined. If the sample has not been measured at least at two
+     * different angles, the offset can not be separated from the sample and will be zero. The offset is zero also if
+     * this step has not been marked with {@link #setOffsetFitted()}.
+     */
+    public synchronized Vector3d getOffset() {
+        return new Vector3d(offset);
+    }
+
+    /**
+     * Fits the offset by least squares. A sample result measured at the rotation angle a is modelled as
+     * <pre>
+     * x = mx cos(a) - my sin(a) + ox
+     * y = mx sin(a) + my cos(a) + oy
+     * </pre>
+     * where (mx, my) is the sample in sample coordinates and (ox, oy) is the offset. The noise is subtracted from the
+     * results before fitting.
+     */
+    private void fitOffset() {
+        offset.set(0.0, 0.0, 0.0);
+        if (!offsetFitted) {
+            return;
+        }
+        Vector3d noise = getNoise();
+        Matrix4d normal = new Matrix4d();       // the normal equations: normal * (mx, my, ox, oy) = right
+        Vector4d right = new Vector4d();
+        int firstRotation = -1;
+        boolean rotated = false;
+        for (MeasurementResult result : results) {
+            if (result.getType() != MeasurementResult.Type.SAMPLE) {
+                continue;
+            }
+            if (firstRotation < 0) {
+                firstRotation = result.getRotation();
+            } else if (result.getRotation() != firstRotation) {
+                rotated = true;
+            }
+            double c = Math.cos(Math.toRadians(result.getRotation()));
+            double s = Math.sin(Math.toRadians(result.getRotation()));
+            double x = result.getRawVector().x - noise.x;
+            double y = result.getRawVector().y - noise.y;
+            addRow(normal, right, c, -s, 1.0, 0.0, x);
+            addRow(normal, right, s, c, 0.0, 1.0, y);
+        }
+        if (!rotated) {
+            return;
+        }
+        try {
+            normal.invert();
+        } catch (SingularMatrixException e) {
+            return;
+        }
+        normal.transform(right);
+        offset.set(right.z, right.w, 0.0);
+    }
+
+    /**
+     * Adds one equation a0*p0 + a1*p1 + a2*p2 + a3*p3 = value to the normal equations of a least squares fit.
+     */
+    private static void addRow(Matrix4d normal, Vector4d right, double a0, double a1, double a2, double a3,
+                               double value) {
+        double[] a = {a0, a1, a2, a3};
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                normal.setElement(i, j, normal.getElement(i, j) + a[i] * a[j]);
+            }
+        }
+        right.x += a0 * value;
+        right.y += a1 * value;
+        right.z += a2 * value;
+        right.w += a3 * value;
+    }
+
     /**
      * Returns an iterator for iterating through this step's measurement results.
      */
@@ -543,6 +762,22 @@ public class MeasurementStep implements Iterable<MeasurementResult> {
         };
     }
 
+    /**
+     * The reasons why the measurement of a step was ended after some number of full rotations.
+     */
+    public enum RotationStop {
+        /**
+         * All of the rotations in the settings were measured.
+         */
+        COMPLETED,
+
+        /**
+         * The angular standard deviation of the readings fell below the project's threshold, so the remaining
+         * rotations were skipped.
+         */
+        CONVERGED
+    }
+
     /**
      * The state of a measurement step.
      */
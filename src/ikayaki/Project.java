@@ -22,6 +22,7 @@
 
 package ikayaki;
 
+import ikayaki.squid.Magnetometer;
 import ikayaki.squid.Squid;
 import ikayaki.util.DocumentUtilities;
 import ikayaki.util.LastExecutor;
@@ -30,6 +31,8 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.EventListenerList;
 import javax.vecmath.Matrix3d;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -39,6 +42,7 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.FieldPosition;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 
 import static ikayaki.MeasurementStep.State.READY;
 import static java.lang.Math.sin;
@@ -79,6 +83,11 @@ public class Project {
     public static final String COMMENT_PROPERTY = "comment";
     public static final String LATITUDE_PROPERTY = "latitude";
     public static final String LONGITUDE_PROPERTY = "longitude";
+    public static final String ROTATION_ANGLES_PROPERTY = "rotationAngles";
+    public static final String ROTATION_ANGLES_DEFAULT_VALUE = "0,90,180,270";
+    public static final String ROTATION_CONVERGENCE_PROPERTY = "rotationConvergence";
+    public static final String AUTO_STOP_RELATIVE_PROPERTY = "autoStopRelativeMagnetization";
+    public static final String AUTO_STOP_NOISE_STEPS_PROPERTY = "autoStopNoiseSteps";
 
     /**
      * Caches the created and loaded Project objects to make sure that no more than one object will be created for each
@@ -117,6 +126,16 @@ public class Project {
      */
     private Squid squid = null;
 
+    /**
+     * Notifies the listeners of this project when a device of the Squid becomes ready, because it changes which
+     * operations are enabled.
+     */
+    private final ChangeListener squidListener = new ChangeListener() {
+        public void stateChanged(ChangeEvent e) {
+            fireProjectEvent(STATE_CHANGED);
+        }
+    };
+
     /**
      * Custom properties of this project stored in a map. The project is not interested in what properties are stored;
      * it only saves them.
@@ -180,6 +199,22 @@ public class Project {
      */
     private MeasurementStep currentStep = null;
 
+    /**
+     * Index of the first step which will not be measured by the running measurement.
+     */
+    private volatile int measurementEnd = Integer.MAX_VALUE;
+
+    /**
+     * Runs the operations of the step being measured, or null if no step is being measured. Aborting the measurement
+     * will cancel its operations.
+     */
+    private volatile StepExecutor stepExecutor = null;
+
+    /**
+     * Estimates the remaining time of this project's measurements, or null if it has not yet been asked for.
+     */
+    private RemainingTimeEstimator remainingTimeEstimator = null;
+
     /**
      * Listeners for this project.
      */
@@ -372,6 +407,10 @@ public class Project {
 
             // mark the project as closed
             project.closed = true;
+            if (project.remainingTimeEstimator != null) {
+                project.remainingTimeEstimator.dispose();
+                project.remainingTimeEstimator = null;
+            }
             project.autosaveRunnable = new Runnable() {
                 public void run() {
                     assert false;
@@ -1213,6 +1252,17 @@ public class Project {
         return squid;
     }
 
+    /**
+     * Returns the estimator of the remaining measurement time of this project. All views share the same estimator, so
+     * they show the same estimates. It is created when first asked for.
+     */
+    public synchronized RemainingTimeEstimator getRemainingTimeEstimator() {
+        if (remainingTimeEstimator == null) {
+            remainingTimeEstimator = new RemainingTimeEstimator(this);
+        }
+        return remainingTimeEstimator;
+    }
+
     /**
      * Sets this project the owner of the Squid. Tries to detach the previous owner of the squid. Uses the setOwner()
      * method of the specified Squid.
@@ -1232,6 +1282,7 @@ public class Project {
                 return true;        // already detached
             }
             if (getState() == IDLE && getSquid().setOwner(null)) {
+                this.squid.removeChangeListener(squidListener);
                 this.squid = null;
                 fireProjectEvent(STATE_CHANGED);
                 return true;
@@ -1249,6 +1300,7 @@ public class Project {
             }
             if (squid.getOwner() == null && squid.setOwner(this)) {
                 this.squid = squid;
+                squid.addChangeListener(squidListener);
                 fireProjectEvent(STATE_CHANGED);
                 return true;
             }
@@ -1562,7 +1614,19 @@ public class Project {
      * @param type the type of the event.
      */
     protected synchronized void fireMeasurementEvent(MeasurementStep step, MeasurementEvent.Type type) {
-        final MeasurementEvent event = new MeasurementEvent(this, step, type);
+        fireMeasurementEvent(step, type, null);
+    }
+
+    /**
+     * Notifies all listeners that have registered for MeasurementEvents, with a message describing the event.
+     *
+     * @param step    the measurement step that has generated the event.
+     * @param type    the type of the event.
+     * @param message a message describing the event, or null.
+     */
+    protected synchronized void fireMeasurementEvent(MeasurementStep step, MeasurementEvent.Type type,
+                                                     String message) {
+        final MeasurementEvent event = new MeasurementEvent(this, step, type, message);
         final MeasurementListener[] listeners = listenerList.getListeners(MeasurementListener.class);
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
@@ -1822,7 +1886,7 @@ public class Project {
      * @throws IllegalStateException if the project's state is IDLE or it has no Squid.
      */
     private void runMeasurement() {
-        if (getSquid() == null && !DEBUG) {
+        if ((getSquid() == null || !getSquid().isReady()) && !DEBUG) {
             throw new IllegalStateException("Unable to run measurement, squid is: " + getSquid());
         }
         if (getState() == IDLE) {
@@ -1845,6 +1909,206 @@ public class Project {
         setState(IDLE);
     }
 
+    /**
+     * Returns the plan of device operations with which the specified step would be measured. The plan has not been
+     * optimized for the handler's current position.
+     *
+     * @param step the step to be measured.
+     * @return a new plan.
+     */
+    public MeasurementPlan getMeasurementPlan(MeasurementStep step) {
+        return getMeasurementPlan(step, true);
+    }
+
+    /**
+     * Returns the plan of device operations with which the specified step would be measured, optionally without the
+     * opening background reading.
+     */
+    private MeasurementPlan getMeasurementPlan(MeasurementStep step, boolean openingBackground) {
+        return MeasurementPlan.forStep(step.getStepValue(), isDegaussingEnabled(), Settings.getMeasurementRotations(),
+                openingBackground, Settings.getMeasurementContinuousRotation(), getRotationAngles());
+    }
+
+    /**
+     * Returns the angles at which the sample is measured on every full rotation of the handler. The angles are in
+     * ascending order in range 0..359 degrees. By default the sample is measured at every quarter turn.
+     */
+    public synchronized int[] getRotationAngles() {
+        String[] s = getProperty(ROTATION_ANGLES_PROPERTY, ROTATION_ANGLES_DEFAULT_VALUE).split(",");
+        SortedSet<Integer> angles = new TreeSet<Integer>();
+        for (String angle : s) {
+            try {
+                angles.add(((Integer.parseInt(angle.trim()) % 360) + 360) % 360);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid rotation angle: " + angle);
+            }
+        }
+        if (angles.size() == 0) {
+            return getRotationAngles(ROTATION_ANGLES_DEFAULT_VALUE);
+        }
+        int[] result = new int[angles.size()];
+        int i = 0;
+        for (int angle : angles) {
+            result[i++] = angle;
+        }
+        return result;
+    }
+
+    /**
+     * Parses a comma separated list of angles.
+     */
+    private static int[] getRotationAngles(String s) {
+        String[] values = s.split(",");
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the angular standard deviation (theta63) in degrees below which the remaining full rotations of a step
+     * will not be measured, or 0.0 if all rotations are always measured.
+     */
+    public synchronized double getRotationConvergence() {
+        String s = getProperty(ROTATION_CONVERGENCE_PROPERTY, "0.0");
+        try {
+            return Math.max(0.0, Double.parseDouble(s));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid rotation convergence: " + s);
+            return 0.0;
+        }
+    }
+
+    /**
+     * Sets the angular standard deviation (theta63) below which the remaining full rotations of a step will not be
+     * measured. After every full rotation, the theta63 of the readings measured so far is compared with this value.
+     *
+     * @param theta63 the threshold in degrees, or 0.0 to always measure all rotations.
+     * @return true if the value was changed, false if a measurement is running or the value is negative.
+     */
+    public synchronized boolean setRotationConvergence(double theta63) {
+        if (getState() != IDLE || theta63 < 0.0) {
+            return false;
+        }
+        setProperty(ROTATION_CONVERGENCE_PROPERTY, Double.toString(theta63));
+        return true;
+    }
+
+    /**
+     * Returns the relative magnetic intensity (J/J0) below which an auto step measurement will stop without measuring
+     * the remaining steps, or 0.0 if this rule is not used.
+     */
+    public synchronized double getAutoStopRelativeMagnetization() {
+        String s = getProperty(AUTO_STOP_RELATIVE_PROPERTY, "0.0");
+        try {
+            return Math.max(0.0, Double.parseDouble(s));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid auto stop relative magnetization: " + s);
+            return 0.0;
+        }
+    }
+
+    /**
+     * Sets the relative magnetic intensity (J/J0) below which an auto step measurement will stop without measuring the
+     * remaining steps. For example 0.05 stops when 95 % of the remanence has been demagnetized.
+     *
+     * @param value the threshold, or 0.0 to not use this rule.
+     * @return true if the value was changed, false if a measurement is running or the value is negative.
+     */
+    public synchronized boolean setAutoStopRelativeMagnetization(double value) {
+        if (getState() != IDLE || value < 0.0) {
+            return false;
+        }
+        setProperty(AUTO_STOP_RELATIVE_PROPERTY, Double.toString(value));
+        return true;
+    }
+
+    /**
+     * Returns the number of consecutive steps whose moment must be below the noise floor for an auto step measurement
+     * to stop without measuring the remaining steps, or 0 if this rule is not used.
+     */
+    public synchronized int getAutoStopNoiseSteps() {
+        String s = getProperty(AUTO_STOP_NOISE_STEPS_PROPERTY, "0");
+        try {
+            return Math.max(0, Integer.parseInt(s));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid auto stop noise steps: " + s);
+            return 0;
+        }
+    }
+
+    /**
+     * Sets the number of consecutive steps whose moment must be below the noise floor for an auto step measurement to
+     * stop without measuring the remaining steps. The noise floor of a step is the magnitude of its background
+     * readings.
+     *
+     * @param steps the number of steps, or 0 to not use this rule.
+     * @return true if the value was changed, false if a measurement is running or the value is negative.
+     */
+    public synchronized boolean setAutoStopNoiseSteps(int steps) {
+        if (getState() != IDLE || steps < 0) {
+            return false;
+        }
+        setProperty(AUTO_STOP_NOISE_STEPS_PROPERTY, Integer.toString(steps));
+        return true;
+    }
+
+    /**
+     * Evaluates the auto stop rules of this project after the specified step has been measured.
+     *
+     * @param index the index of the step that was measured last.
+     * @return why the measurement should stop, or null if it should continue.
+     */
+    private synchronized String getAutoStopReason(int index) {
+        MeasurementStep step = getStep(index);
+
+        double relative = getAutoStopRelativeMagnetization();
+        if (relative > 0.0) {
+            Double value = MeasurementValue.RELATIVE_MAGNETIZATION.getValue(step);
+            if (value != null && value < relative) {
+                return "J/J0 = " + String.format("%.3f", value) + " is below " + relative;
+            }
+        }
+
+        int noiseSteps = getAutoStopNoiseSteps();
+        if (noiseSteps > 0 && index + 1 >= noiseSteps) {
+            boolean belowNoise = true;
+            for (int i = index - noiseSteps + 1; i <= index && belowNoise; i++) {
+                // the ratio of the moment to the background readings, null if there are no background readings
+                Double signal = MeasurementValue.SIGNAL_TO_DRIFT.getValue(getStep(i));
+                belowNoise = getStep(i).getState().isDone() && signal != null && signal < 1.0;
+            }
+            if (belowNoise) {
+                return "Moment below the noise floor for " + noiseSteps + " consecutive steps";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the angles at which the sample is measured on every full rotation of the handler, for example {0, 120, 240}
+     * for a quick measurement or every 45 degrees for a weak sample. Will do nothing if a measurement is running.
+     *
+     * @param angles the angles in degrees. They will be taken modulo 360 and sorted.
+     * @return true if the angles were changed, false if a measurement is running or there were no angles.
+     * @throws NullPointerException if angles is null.
+     */
+    public synchronized boolean setRotationAngles(int... angles) {
+        if (getState() != IDLE || angles.length == 0) {
+            return false;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int angle : angles) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(angle);
+        }
+        setProperty(ROTATION_ANGLES_PROPERTY, sb.toString());
+        return true;
+    }
+
     /**
      * Tells whether it is allowed to use the degausser in this project. The returned value depends on the type and
      * state of this project.
@@ -1888,12 +2152,20 @@ public class Project {
         }
     }
 
+    /**
+     * Tells whether it is allowed to control the specified device of the Squid manually. A device can be controlled as
+     * soon as it is ready, even if the other devices are still being initialized.
+     */
+    public synchronized boolean isManualControlEnabled(Squid.Device device) {
+        return isManualControlEnabled() && getSquid().isReady(device);
+    }
+
     /**
      * Tells whether it is allowed to do an auto step measurement. The returned value depends on the type and state of
      * this project.
      */
     public synchronized boolean isAutoStepEnabled() {
-        if (getSquid() == null && !DEBUG) {
+        if ((getSquid() == null || !getSquid().isReady()) && !DEBUG) {
             return false;
         }
         if (type == CALIBRATION || type == THELLIER || type == THERMAL) {
@@ -1914,7 +2186,7 @@ public class Project {
      * this project.
      */
     public synchronized boolean isSingleStepEnabled() {
-        if (getSquid() == null && !DEBUG) {
+        if ((getSquid() == null || !getSquid().isReady()) && !DEBUG) {
             return false;
         }
         if (type == CALIBRATION || type == AF || type == THELLIER || type == THERMAL) {
@@ -1968,7 +2240,29 @@ public class Project {
      * @return true if the measurement was started, otherwise false.
      */
     public synchronized boolean doAutoStep() {
-        if (getSquid() == null && !DEBUG) {
+        return doAutoStep(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the index of the first step which will not be measured by the running measurement. If no measurement is
+     * running, returns the number of steps.
+     */
+    public synchronized int getMeasurementEnd() {
+        if (getState() == IDLE) {
+            return getSteps();
+        }
+        return Math.min(measurementEnd, getSteps());
+    }
+
+    /**
+     * Starts an auto step measurement which will stop before the specified step, otherwise works the same as {@link
+     * #doAutoStep()}.
+     *
+     * @param endStep the index of the first step that will not be measured.
+     * @return true if the measurement was started, otherwise false.
+     */
+    public synchronized boolean doAutoStep(int endStep) {
+        if ((getSquid() == null || !getSquid().isReady()) && !DEBUG) {
             return false;
         }
         if (getState() == IDLE) {
@@ -1984,6 +2278,7 @@ public class Project {
             if (getSteps() == getCompletedSteps()) {
                 addStep(new MeasurementStep(this));
             }
+            measurementEnd = endStep;
 
             new Thread() {
                 @Override public void run() {
@@ -2044,6 +2339,10 @@ public class Project {
      * Aborts the currently running measurement. An aborted measurement will halt immediately and leave the handler
      * where it was (enables manual control). Will do nothing if isAbortEnabled() is false.
      * <p/>
+     * The operations of the step being measured are interrupted, the handler is stopped and all commands waiting for
+     * answers from the devices are cancelled. The devices will forget the state that they had cached, so that it will
+     * be set again before the next measurement.
+     * <p/>
      * This method will notify the measurement thread to abort, but will not wait for it to finish.
      *
      * @return true if the measurement will abort, otherwise false.
@@ -2056,6 +2355,13 @@ public class Project {
             return false;
         } else {
             setState(ABORTED);
+            StepExecutor executor = stepExecutor;
+            if (executor != null) {
+                executor.cancelAll();
+            }
+            if (getSquid() != null) {
+                getSquid().abort();
+            }
             return true;
         }
     }
@@ -2063,24 +2369,44 @@ public class Project {
     /**
      * Moves the sample handler to the specified position. Will do nothing if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @param position the position to move the handler to.
      * @return true if the operation was started, otherwise false.
      */
     private synchronized boolean doManualMove(ManualMovePosition position) {
-        if (!isManualControlEnabled()) {
+        if (!isManualControlEnabled(Squid.Device.HANDLER)) {
             return false;
         }
+        return doManual(Squid.Device.HANDLER, "Manual move to " + position, new ManualMove(position));
+    }
+
+    /**
+     * Submits a manual operation to the device executor of the Squid and sets the project's state to PAUSED for the
+     * duration of the operation. The operation is rejected if the device is already busy, for example if the same
+     * command was given twice in a row.
+     *
+     * @param device    the device that the operation uses.
+     * @param name      a short description of the operation.
+     * @param operation the operation, which must set the state to IDLE when it finishes.
+     * @return true if the operation was started, otherwise false.
+     */
+    private synchronized boolean doManual(Squid.Device device, String name, Runnable operation) {
         setState(PAUSED);
-        new Thread(new ManualMove(position)).start();
+        try {
+            getSquid().getExecutor().submitExclusive(device, name, operation);
+        } catch (RejectedExecutionException e) {
+            System.err.println(e.getMessage());
+            setState(IDLE);
+            return false;
+        }
         return true;
     }
 
     /**
      * Moves the sample handler to the DegausserY position. Will do nothing if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @return true if the operation was started, otherwise false.
      */
@@ -2091,7 +2417,7 @@ public class Project {
     /**
      * Moves the sample handler to the DegausserZ position. Will do nothing if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @return true if the operation was started, otherwise false.
      */
@@ -2102,7 +2428,7 @@ public class Project {
     /**
      * Moves the sample handler to the Background position. Will do nothing if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @return true if the operation was started, otherwise false.
      */
@@ -2113,7 +2439,7 @@ public class Project {
     /**
      * Moves the sample handler to the Measurement position. Will do nothing if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @return true if the operation was started, otherwise false.
      */
@@ -2124,7 +2450,7 @@ public class Project {
     /**
      * Moves the sample handler to the Home position. Will do nothing if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @return true if the operation was started, otherwise false.
      */
@@ -2136,7 +2462,7 @@ public class Project {
     /**
      * Moves the sample handler to the RightLimit position. Will do nothing if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @return true if the operation was started, otherwise false.
      */
@@ -2148,7 +2474,7 @@ public class Project {
     /**
      * Moves the sample handler to the LeftLimit position. Will do nothing if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @return true if the operation was started, otherwise false.
      */
@@ -2161,51 +2487,46 @@ public class Project {
     /**
      * Rotates the sample handler to the specified angle. Will do nothing if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @param angle the angle to rotate the handler to.
      * @return true if the operation was started, otherwise false.
      */
     public synchronized boolean doManualRotate(int angle) {
-        if (!isManualControlEnabled()) {
+        if (!isManualControlEnabled(Squid.Device.HANDLER)) {
             return false;
         }
-        setState(PAUSED);
-        new Thread(new ManualRotate(angle)).start();
-        return true;
+        return doManual(Squid.Device.HANDLER, "Manual rotate to " + angle, new ManualRotate(angle));
     }
 
     /**
      * Measures the X, Y and Z of the sample. Adds the results as a new measurement step to the project. Will do nothing
      * if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @return true if the operation was started, otherwise false.
      */
     public synchronized boolean doManualMeasure() {
-        if (!isManualControlEnabled()) {
+        if (!isManualControlEnabled(Squid.Device.MAGNETOMETER)) {
             return false;
         }
-        setState(PAUSED);
-        new Thread(new ManualMeasure()).start();
-        return true;
+        return doManual(Squid.Device.MAGNETOMETER, "Manual measure", new ManualMeasure());
     }
 
     // TODO: is this comment even close?
     /**
      * Resets the X, Y and Z of the sample. Will do nothing if isManualControlEnabled() is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @return true if the operation was started, otherwise false.
      */
     public synchronized boolean doManualReset() {
-        if (!isManualControlEnabled()) {
+        if (!isManualControlEnabled(Squid.Device.MAGNETOMETER)) {
             return false;
         }
-        setState(PAUSED);
-        new Thread(new Runnable() {
+        return doManual(Squid.Device.MAGNETOMETER, "Manual reset", new Runnable() {
             public void run() {
                 if (getSquid() == null) {
                     throw new IllegalStateException();
@@ -2215,44 +2536,39 @@ public class Project {
                 getSquid().getMagnetometer().clearFlux('A');
                 setState(IDLE);
             }
-        }).start();
-        return true;
+        });
     }
 
     /**
      * Demagnetizes the sample in Z direction with the specified amplitude. Will do nothing if isManualControlEnabled()
      * is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @param amplitude the amplitude to demagnetize in mT.
      * @return true if the operation was started, otherwise false.
      */
     public synchronized boolean doManualDemagZ(double amplitude) {
-        if (!isManualControlEnabled()) {
+        if (!isManualControlEnabled(Squid.Device.DEGAUSSER)) {
             return false;
         }
-        setState(PAUSED);
-        new Thread(new ManualDemag(ManualDemagAxel.Z, amplitude)).start();
-        return true;
+        return doManual(Squid.Device.DEGAUSSER, "Manual demagnetize Z", new ManualDemag(ManualDemagAxel.Z, amplitude));
     }
 
     /**
      * Demagnetizes the sample in Y direction with the specified amplitude. Will do nothing if isManualControlEnabled()
      * is false.
      * <p/>
-     * The operation will run in its own thread, and this method will not wait for it to finish.
+     * The operation will be run by the device executor of the Squid, and this method will not wait for it to finish.
      *
      * @param amplitude the amplitude to demagnetize in mT.
      * @return true if the operation was started, otherwise false.
      */
     public synchronized boolean doManualDemagY(double amplitude) {
-        if (!isManualControlEnabled()) {
+        if (!isManualControlEnabled(Squid.Device.DEGAUSSER)) {
             return false;
         }
-        setState(PAUSED);
-        new Thread(new ManualDemag(ManualDemagAxel.Y, amplitude)).start();
-        return true;
+        return doManual(Squid.Device.DEGAUSSER, "Manual demagnetize Y", new ManualDemag(ManualDemagAxel.Y, amplitude));
     }
 
     /**
@@ -2324,6 +2640,29 @@ public class Project {
      * starting this thread.
      */
     private class Measurement implements Runnable {
+
+        /**
+         * The latest background reading of the step being measured, or null if the step has none or it failed. After
+         * the step has been completed, this is its closing background reading.
+         */
+        private volatile MeasurementResult lastBackground = null;
+
+        /**
+         * The time (as given by System.nanoTime()) when lastBackground was read.
+         */
+        private volatile long lastBackgroundTime;
+
+        /**
+         * The number of full rotations in the plan of the step being measured.
+         */
+        private volatile int cycles;
+
+        /**
+         * The last full rotation which will be measured in the step being measured. The operations of the later
+         * rotations are skipped.
+         */
+        private volatile int lastCycle;
+
         public void run() {
             if (getState() == IDLE) {
                 throw new IllegalStateException();
@@ -2332,169 +2671,36 @@ public class Project {
                 throw new IllegalStateException();
             }
 
-            for (int i = getCompletedSteps(); i < getSteps(); i++) {
+            for (int i = getCompletedSteps(); i < getSteps() && i < measurementEnd; i++) {
 
                 // begin measuring the first uncomplete step
                 currentStep = getStep(i);
                 currentStep.setMeasuring();
+                currentStep.setOffsetFitted();
                 fireMeasurementEvent(currentStep, STEP_START);
 
+                long stepStart = System.nanoTime();
                 try {
-                    // reset the equipment
-                    if (getSquid().getHandler().getRotation() != 0) {
-                        getSquid().getHandler().rotateTo(0);
-                        getSquid().getHandler().join();
-                    }
-                    checkAborted();
-
-                    // demagnetizing
-                    if (currentStep.getStepValue() > 0.05 && isDegaussingEnabled()) {
-
-                        // demagnetize Z
-                        getSquid().getHandler().moveToDegausserZ();
-                        fireMeasurementEvent(currentStep, HANDLER_MOVE);
-                        getSquid().getHandler().join();
-                        fireMeasurementEvent(currentStep, HANDLER_STOP);
-                        checkAborted();
-                        fireMeasurementEvent(currentStep, DEMAGNETIZE_START);
-                        if (!getSquid().getDegausser().demagnetizeZ(currentStep.getStepValue())) {
-                            throw new InterruptedException("demagnetizeZ = false");
-                        }
-                        fireMeasurementEvent(currentStep, DEMAGNETIZE_END);
-                        checkAborted();
-
-                        // demagnetize Y
-                        getSquid().getHandler().moveToDegausserY();
-                        fireMeasurementEvent(currentStep, HANDLER_MOVE);
-                        getSquid().getHandler().join();
-                        fireMeasurementEvent(currentStep, HANDLER_STOP);
-                        checkAborted();
-                        fireMeasurementEvent(currentStep, DEMAGNETIZE_START);
-                        if (!getSquid().getDegausser().demagnetizeY(currentStep.getStepValue())) {
-                            throw new InterruptedException("demagnetizeY = false");
-                        }
-                        fireMeasurementEvent(currentStep, DEMAGNETIZE_END);
-                        checkAborted();
-
-                        // demagnetize X
-                        getSquid().getHandler().rotateTo(90);
-                        fireMeasurementEvent(currentStep, HANDLER_ROTATE);
-                        getSquid().getHandler().join();
-                        fireMeasurementEvent(currentStep, HANDLER_STOP);
-                        checkAborted();
-                        fireMeasurementEvent(currentStep, DEMAGNETIZE_START);
-                        if (!getSquid().getDegausser().demagnetizeY(currentStep.getStepValue())) {
-                            throw new InterruptedException("demagnetizeY = false");
-                        }
-                        fireMeasurementEvent(currentStep, DEMAGNETIZE_END);
-                        checkAborted();
-                        getSquid().getHandler().rotateTo(0);
-                        fireMeasurementEvent(currentStep, HANDLER_ROTATE);
-                        getSquid().getHandler().join();
-                        fireMeasurementEvent(currentStep, HANDLER_STOP);
-                        checkAborted();
-                    }
-
-                    // measure first background noise
-                    getSquid().getHandler().moveToBackground();
-                    fireMeasurementEvent(currentStep, HANDLER_MOVE);
-                    getSquid().getHandler().join();
-                    fireMeasurementEvent(currentStep, HANDLER_STOP);
-                    checkAborted();
-                    // Begin by pulsing feedback loop for each axis And by clearing flux counter for each axis
-                    // TODO: these should be in one Magnetometer method
-                    getSquid().getMagnetometer().pulseReset('A');
-                    getSquid().getMagnetometer().clearFlux('A');
-                    double[] results = getSquid().getMagnetometer().readData();
-                    currentStep.addResult(new MeasurementResult(NOISE, 0, results[0], results[1], results[2]));
-                    fireMeasurementEvent(currentStep, VALUE_MEASURED);
-                    checkAborted();
-
-                    // begin measuring the sample
-                    getSquid().getHandler().moveToMeasurement();
-                    fireMeasurementEvent(currentStep, HANDLER_MOVE);
-                    getSquid().getHandler().join();
-                    fireMeasurementEvent(currentStep, HANDLER_STOP);
-                    checkAborted();
-
-                    // measure with the set amount of handler rotations
-                    int rotations = Settings.getMeasurementRotations();
-                    if (rotations == 0) {
-
-                        // quick measure with no rotations
-                        results = getSquid().getMagnetometer().readData();
-                        currentStep.addResult(new MeasurementResult(SAMPLE, 0, results[0], results[1], results[2]));
+                    // reuse the closing background of the previous step, if allowed
+                    MeasurementResult background = takeSharedBackground(currentStep);
+                    if (background != null) {
+                        currentStep.addResult(background);
                         fireMeasurementEvent(currentStep, VALUE_MEASURED);
-                        checkAborted();
-
-                    } else {
-
-                        // accurate measure with rotations
-                        for (int j = 0; j < rotations; j++) {
-
-                            // measure at 0 degrees
-                            results = getSquid().getMagnetometer().readData();
-                            currentStep.addResult(new MeasurementResult(SAMPLE, 0, results[0], results[1], results[2]));
-                            fireMeasurementEvent(currentStep, VALUE_MEASURED);
-                            checkAborted();
-
-                            // measure at 90 degrees
-                            getSquid().getHandler().rotateTo(90);
-                            fireMeasurementEvent(currentStep, HANDLER_ROTATE);
-                            getSquid().getHandler().join();
-                            fireMeasurementEvent(currentStep, HANDLER_STOP);
-                            checkAborted();
-                            results = getSquid().getMagnetometer().readData();
-                            currentStep.addResult(
-                                    new MeasurementResult(SAMPLE, 90, results[0], results[1], results[2]));
-                            fireMeasurementEvent(currentStep, VALUE_MEASURED);
-                            checkAborted();
-
-                            // measure at 180 degrees
-                            getSquid().getHandler().rotateTo(180);
-                            fireMeasurementEvent(currentStep, HANDLER_ROTATE);
-                            getSquid().getHandler().join();
-                            fireMeasurementEvent(currentStep, HANDLER_STOP);
-                            checkAborted();
-                            results = getSquid().getMagnetometer().readData();
-                            currentStep.addResult(
-                                    new MeasurementResult(SAMPLE, 180, results[0], results[1], results[2]));
-                            fireMeasurementEvent(currentStep, VALUE_MEASURED);
-                            checkAborted();
-
-                            // measure at 270 degrees
-                            getSquid().getHandler().rotateTo(270);
-                            fireMeasurementEvent(currentStep, HANDLER_ROTATE);
-                            getSquid().getHandler().join();
-                            fireMeasurementEvent(currentStep, HANDLER_STOP);
-                            checkAborted();
-                            results = getSquid().getMagnetometer().readData();
-                            currentStep.addResult(
-                                    new MeasurementResult(SAMPLE, 270, results[0], results[1], results[2]));
-                            fireMeasurementEvent(currentStep, VALUE_MEASURED);
-                            checkAborted();
-
-                            // rotate the handler back to 0 degrees
-                            getSquid().getHandler().rotateTo(0);
-                            fireMeasurementEvent(currentStep, HANDLER_ROTATE);
-                            getSquid().getHandler().join();
-                            fireMeasurementEvent(currentStep, HANDLER_STOP);
-                            checkAborted();
-                        }
                     }
 
-                    // measure second background noise
-                    getSquid().getHandler().moveToBackground();
-                    fireMeasurementEvent(currentStep, HANDLER_MOVE);
-                    getSquid().getHandler().join();
-                    fireMeasurementEvent(currentStep, HANDLER_STOP);
-                    checkAborted();
-                    results = getSquid().getMagnetometer().readData();
-                    currentStep.addResult(new MeasurementResult(NOISE, 0, results[0], results[1], results[2]));
-                    fireMeasurementEvent(currentStep, VALUE_MEASURED);
+                    // plan the device operations for this step and execute them
+                    MeasurementPlan plan = getMeasurementPlan(currentStep, background == null);
+                    plan = plan.optimize(getSquid().getHandler().getRotation(), getHandlerPosition());
+                    cycles = plan.getCycles();
+                    lastCycle = cycles;
+                    stepExecutor = new StepExecutor("Step " + (i + 1), getSquid().getExecutor());
+
+                    // doAbort() may have missed the new executor, so do not submit anything after an abort
                     checkAborted();
+                    execute(plan, currentStep, stepExecutor);
 
                 } catch (InterruptedException e) {
+                    lastBackground = null;
 
                     // the measurement was aborted or some error occurred
                     if (getState() == ABORTED) {
@@ -2503,10 +2709,13 @@ public class Project {
                         e.printStackTrace();
                     }
                 } catch (IllegalStateException e) {
+                    lastBackground = null;
                     e.printStackTrace();
                 } finally {
+                    stepExecutor = null;
 
                     // complete the step
+                    currentStep.addTiming(StepTiming.STEP, System.nanoTime() - stepStart);
                     currentStep.setDone();
                     fireMeasurementEvent(currentStep, STEP_END);
                     currentStep = null;
@@ -2516,10 +2725,230 @@ public class Project {
                     setState(IDLE);
                     return;
                 }
+
+                // stop if the sample is demagnetized enough, leaving the remaining steps unmeasured
+                if (i + 1 < getSteps() && i + 1 < measurementEnd) {
+                    String reason = getAutoStopReason(i);
+                    if (reason != null) {
+                        System.err.println("Measurement stopped: " + reason);
+                        fireMeasurementEvent(getStep(i), AUTO_STOPPED, reason);
+                        setState(IDLE);
+                        return;
+                    }
+                }
             }
             setState(IDLE);
         }
 
+        /**
+         * Executes a measurement plan. Every operation is started as soon as the preceding operations that conflict
+         * with it (see {@link MeasurementPlan.Operation#conflictsWith}) have finished, so operations on independent
+         * devices may overlap.
+         *
+         * @param plan     the plan to execute.
+         * @param step     the step being measured.
+         * @param executor the executor for running the operations.
+         * @throws InterruptedException if the measurement was aborted or some of the operations failed.
+         */
+        private void execute(MeasurementPlan plan, MeasurementStep step, StepExecutor executor)
+                throws InterruptedException {
+            List<MeasurementPlan.Operation> previous = new ArrayList<MeasurementPlan.Operation>();
+            List<StepExecutor.Operation> started = new ArrayList<StepExecutor.Operation>();
+            try {
+                for (MeasurementPlan.Operation op : plan) {
+                    List<StepExecutor.Operation> dependencies = new ArrayList<StepExecutor.Operation>();
+                    for (int i = previous.size() - 1; i >= 0; i--) {
+                        if (op.conflictsWith(previous.get(i))) {
+                            dependencies.add(started.get(i));
+                            if (previous.get(i).isCheckpoint()) {
+                                break;  // the checkpoint depends on everything before it
+                            }
+                        }
+                    }
+                    previous.add(op);
+                    started.add(executor.add(op.toString(), op.getDevice(), new PlanTask(op, step),
+                            dependencies.toArray(new StepExecutor.Operation[dependencies.size()])));
+                }
+            } finally {
+                executor.awaitAll();
+            }
+        }
+
+        /**
+         * Returns a copy of the closing background reading of the previous step, if it may be reused as the opening
+         * background of the specified step. It may be reused if sharing is enabled in the settings, the step will not
+         * be demagnetized and the reading is not older than the allowed gap. Will forget the previous reading, so that
+         * it will not be reused more than once.
+         *
+         * @param step the step that is about to be measured.
+         * @return a copy of the previous background reading, or null if a new one must be measured.
+         */
+        private MeasurementResult takeSharedBackground(MeasurementStep step) {
+            MeasurementResult previous = lastBackground;
+            long elapsed = System.nanoTime() - lastBackgroundTime;
+            lastBackground = null;
+
+            if (previous == null || !Settings.getMeasurementShareBackground()) {
+                return null;
+            }
+            if (MeasurementPlan.isDemagnetized(step.getStepValue(), isDegaussingEnabled())) {
+                return null;
+            }
+            if (elapsed > Settings.getMeasurementShareBackgroundMaxGap() * 1000000000L) {
+                return null;
+            }
+            return new MeasurementResult(NOISE, 0, previous.getRawX(), previous.getRawY(), previous.getRawZ(),
+                    previous.getRawErrorX(), previous.getRawErrorY(), previous.getRawErrorZ());
+        }
+
+        /**
+         * Returns the measurement position where the handler is at, or null if it is not at any of them.
+         */
+        private MeasurementPlan.Position getHandlerPosition() {
+            int position = getSquid().getHandler().getPosition();
+            if (position == Settings.getHandlerBackgroundPosition()) {
+                return MeasurementPlan.Position.BACKGROUND;
+            } else if (position == Settings.getHandlerMeasurementPosition()) {
+                return MeasurementPlan.Position.MEASUREMENT;
+            } else if (position == Settings.getHandlerAxialAFPosition()) {
+                return MeasurementPlan.Position.DEGAUSSER_Z;
+            } else if (position == Settings.getHandlerTransverseYAFPosition()) {
+                return MeasurementPlan.Position.DEGAUSSER_Y;
+            } else {
+                return null;
+            }
+        }
+
+        /**
+         * Runs one operation of a measurement plan on the devices and fires the corresponding measurement events.
+         *
+         * @author agent
+         */
+        private class PlanTask implements StepExecutor.Task {
+
+            private final MeasurementPlan.Operation op;
+            private final MeasurementStep step;
+
+            public PlanTask(MeasurementPlan.Operation op, MeasurementStep step) {
+                this.op = op;
+                this.step = step;
+            }
+
+            public void run() throws InterruptedException {
+                if (op.getCycle() > lastCycle) {
+                    return;     // the remaining rotations are skipped
+                }
+                long start = System.nanoTime();
+                try {
+                    runOperation();
+                } finally {
+                    // also the failed and aborted operations took their time
+                    if (!op.isCheckpoint()) {
+                        step.addTiming(op.getType().name(), System.nanoTime() - start);
+                    }
+                }
+            }
+
+            private void runOperation() throws InterruptedException {
+                switch (op.getType()) {
+                case MOVE:
+                    switch (op.getPosition()) {
+                    case DEGAUSSER_Z:
+                        getSquid().getHandler().moveToDegausserZ();
+                        break;
+                    case DEGAUSSER_Y:
+                        getSquid().getHandler().moveToDegausserY();
+                        break;
+                    case BACKGROUND:
+                        getSquid().getHandler().moveToBackground();
+                        break;
+                    case MEASUREMENT:
+                        getSquid().getHandler().moveToMeasurement();
+                        break;
+                    }
+                    fireMeasurementEvent(step, HANDLER_MOVE);
+                    getSquid().getHandler().join();
+                    fireMeasurementEvent(step, HANDLER_STOP);
+                    break;
+
+                case ROTATE:
+                    getSquid().getHandler().rotateTo(op.getAngle());
+                    fireMeasurementEvent(step, HANDLER_ROTATE);
+                    getSquid().getHandler().join();
+                    fireMeasurementEvent(step, HANDLER_STOP);
+                    break;
+
+                case DEMAG:
+                    fireMeasurementEvent(step, DEMAGNETIZE_START);
+                    if (op.getAxis() == 'Z') {
+                        if (!getSquid().getDegausser().demagnetizeZ(op.getAmplitude())) {
+                            throw new InterruptedException("demagnetizeZ = false");
+                        }
+                    } else {
+                        if (!getSquid().getDegausser().demagnetizeY(op.getAmplitude())) {
+                            throw new InterruptedException("demagnetizeY = false");
+                        }
+                    }
+                    fireMeasurementEvent(step, DEMAGNETIZE_END);
+                    break;
+
+                case RESET:
+                    // pulse the feedback loop and clear the flux counter for each axis
+                    getSquid().getMagnetometer().pulseReset('A');
+                    getSquid().getMagnetometer().clearFlux('A');
+                    break;
+
+                case READ:
+                    Magnetometer.Reading reading = getSquid().getMagnetometer().read();
+                    step.addTiming(StepTiming.SETTLE, reading.getSettleTime() * 1000000L);
+                    double[] results = reading.getValues();
+                    double[] errors = reading.getStandardErrors();
+                    MeasurementResult result = new MeasurementResult(op.getResultType(), op.getAngle(),
+                            results[0], results[1], results[2], errors[0], errors[1], errors[2]);
+                    step.addResult(result);
+                    if (result.getType() == NOISE) {
+                        lastBackgroundTime = System.nanoTime();
+                        lastBackground = result;
+                    }
+                    fireMeasurementEvent(step, VALUE_MEASURED);
+                    break;
+
+                case CHECKPOINT:
+                    checkAborted();
+                    break;
+
+                case CYCLE_END:
+                    checkAborted();
+                    endCycle(op.getCycle(), step);
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Called after every full rotation. Decides whether the remaining rotations are needed, by comparing the
+         * angular standard deviation of the readings so far with the project's threshold. When no more rotations will
+         * be measured, records the number of rotations and the reason in the step.
+         *
+         * @param cycle the number of the full rotation that was finished.
+         * @param step  the step being measured.
+         */
+        private void endCycle(int cycle, MeasurementStep step) {
+            if (cycle >= cycles) {
+                step.setRotations(cycle, MeasurementStep.RotationStop.COMPLETED);
+                return;
+            }
+            double threshold = getRotationConvergence();
+            if (threshold <= 0.0) {
+                return;
+            }
+            Double theta63 = MeasurementValue.THETA63.getValue(step);
+            if (theta63 != null && theta63 < threshold) {
+                lastCycle = cycle;
+                step.setRotations(cycle, MeasurementStep.RotationStop.CONVERGED);
+            }
+        }
+
         /**
          * Checks whether the measurement has been aborted. Will throw an exception if the measurement has been aborted,
          * otherwise will do nothing.
@@ -2545,7 +2974,7 @@ public class Project {
             }
 
             System.out.println("Measurement started");
-            for (int i = getCompletedSteps(); i < getSteps(); i++) {
+            for (int i = getCompletedSteps(); i < getSteps() && i < measurementEnd; i++) {
 
                 System.out.println("Measuring step " + i + "...");
                 currentStep = getStep(i);
@@ -2662,7 +3091,7 @@ public class Project {
     }
 
     /**
-     * Runs a manual move command. The project's state must be non-IDLE before starting this thread.
+     * Runs a manual move command. The project's state must be non-IDLE before submitting this command.
      */
     private class ManualMove implements Runnable {
 
@@ -2680,6 +3109,8 @@ public class Project {
                 throw new IllegalStateException();
             }
 
+            // the command is run by the handler's worker thread, so the movement is done before the methods return
+            fireMeasurementEvent(null, HANDLER_MOVE);
             switch (pos) {
             case DEGAUSSER_Y:
                 getSquid().getHandler().moveToDegausserY();
@@ -2707,7 +3138,6 @@ public class Project {
                 assert false;
                 break;
             }
-            fireMeasurementEvent(null, HANDLER_MOVE);
 
             try {
                 getSquid().getHandler().join();
@@ -2720,7 +3150,7 @@ public class Project {
     }
 
     /**
-     * Runs a manual rotate command. The project's state must be non-IDLE before starting this thread.
+     * Runs a manual rotate command. The project's state must be non-IDLE before submitting this command.
      */
     private class ManualRotate implements Runnable {
 
@@ -2738,8 +3168,8 @@ public class Project {
                 throw new IllegalStateException();
             }
 
-            getSquid().getHandler().rotateTo(angle);
             fireMeasurementEvent(null, HANDLER_ROTATE);
+            getSquid().getHandler().rotateTo(angle);
 
             try {
                 getSquid().getHandler().join();
@@ -2754,7 +3184,7 @@ public class Project {
 
     /**
      * Runs a manual measure command and adds a new step to this project with the measurement data. The project's state
-     * must be non-IDLE before starting this thread.
+     * must be non-IDLE before submitting this command.
      */
     private class ManualMeasure implements Runnable {
         public void run() {
@@ -2776,19 +3206,30 @@ public class Project {
                 fireMeasurementEvent(currentStep, STEP_START);
             }
 
-            double[] results = getSquid().getMagnetometer().readData();
+            Magnetometer.Reading reading;
+            try {
+                reading = getSquid().getMagnetometer().read();
+            } catch (InterruptedException e) {
+                System.err.println("Manual measure aborted");
+                setState(IDLE);
+                return;
+            }
 
             // check where we are
             MeasurementResult.Type resultType;
             int rotation;
-            if (getSquid().getHandler().getPosition() == Settings.getHandlerMeasurementPosition()) {
+            if (getSquid().getHandler() != null
+                    && getSquid().getHandler().getPosition() == Settings.getHandlerMeasurementPosition()) {
                 resultType = SAMPLE;
                 rotation = getSquid().getHandler().getRotation();
             } else {
                 resultType = NOISE;
                 rotation = 0;
             }
-            currentStep.addResult(new MeasurementResult(resultType, rotation, results[0], results[1], results[2]));
+            double[] results = reading.getValues();
+            double[] errors = reading.getStandardErrors();
+            currentStep.addResult(new MeasurementResult(resultType, rotation, results[0], results[1], results[2],
+                    errors[0], errors[1], errors[2]));
             fireMeasurementEvent(currentStep, VALUE_MEASURED);
 
             setState(IDLE);
@@ -2802,7 +3243,7 @@ public class Project {
 
     /**
      * Runs a manual demag command and adds a new step to this project with the demag value. The project's state must be
-     * non-IDLE before starting this thread.
+     * non-IDLE before submitting this command.
      */
     private class ManualDemag implements Runnable {
 
@@ -2850,17 +3291,21 @@ public class Project {
 
             // demagnetize the sample
             fireMeasurementEvent(currentStep, DEMAGNETIZE_START);
-            switch (axel) {
-            case Y:
-                getSquid().getDegausser().demagnetizeY(amplitude);
-                break;
-            case Z:
-                getSquid().getDegausser().demagnetizeZ(amplitude);
-                break;
-            default:
-                System.err.println("Invalid axel: " + axel);
-                assert false;
-                break;
+            try {
+                switch (axel) {
+                case Y:
+                    getSquid().getDegausser().demagnetizeY(amplitude);
+                    break;
+                case Z:
+                    getSquid().getDegausser().demagnetizeZ(amplitude);
+                    break;
+                default:
+                    System.err.println("Invalid axel: " + axel);
+                    assert false;
+                    break;
+                }
+            } catch (InterruptedException e) {
+                System.err.println("Manual demag aborted");
             }
             fireMeasurementEvent(currentStep, DEMAGNETIZE_END);
 
@@ -0,0 +1,462 @@
+/*
+ * RemainingTimeEstimator.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.EventListenerList;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ikayaki.MeasurementPlan.Type.*;
+
+/**
+ * Estimates how long the measurement of a project will still take. The handler's movements and rotations are estimated
+ * from the positions and velocities in Settings, and the other operations from the durations recorded in the project's
+ * completed steps (see {@link StepTiming}). Until some durations have been recorded, rough default values are used.
+ * <p/>
+ * The operations of a step are scheduled the same way as the measurement runs them: an operation may overlap the
+ * operations before it, unless {@link MeasurementPlan.Operation#conflictsWith(MeasurementPlan.Operation)} says
+ * otherwise, so for example resetting the magnetometer is done while the handler moves.
+ * <p/>
+ * The estimator listens to the MeasurementEvents of the project and follows the progress of the step being measured
+ * one operation at a time. There is one estimator per project (see {@link Project#getRemainingTimeEstimator()}), so
+ * that all views show the same estimates. The views are notified with a ChangeEvent whenever the estimates change, and
+ * once every UPDATE_INTERVAL while a step is being measured.
+ * <p/>
+ * All operations are thread-safe. The ChangeEvents are fired in the event dispatch thread.
+ *
+ * @author agent
+ */
+public class RemainingTimeEstimator implements MeasurementListener {
+
+    /**
+     * How often in milliseconds the listeners are notified while a step is being measured.
+     */
+    public static final int UPDATE_INTERVAL = 1000;
+
+    /**
+     * The time in milliseconds which is added to every movement and rotation for starting and stopping the motor.
+     */
+    private static final long MOTOR_OVERHEAD = 500;
+
+    /**
+     * The default durations in milliseconds of the operations, used until the durations have been recorded.
+     */
+    private static final long DEFAULT_DEMAG = 20000;
+    private static final long DEFAULT_RESET = 500;
+    private static final long DEFAULT_READ_PER_SAMPLE = 500;
+
+    /**
+     * The project whose measurement is estimated.
+     */
+    private final Project project;
+
+    /**
+     * The sums of the recorded durations by the operation name: {count, total nanoseconds}.
+     */
+    private final Map<String, long[]> recorded = new HashMap<String, long[]>();
+
+    /**
+     * The operations of the step being measured, or null if no step is being measured.
+     */
+    private List<MeasurementPlan.Operation> currentOperations = null;
+
+    /**
+     * The index of the operation which is being run in the current step.
+     */
+    private int currentIndex;
+
+    /**
+     * The time (as given by System.nanoTime()) when the operation at currentIndex was begun.
+     */
+    private long currentStart;
+
+    /**
+     * Notifies the listeners periodically while a step is being measured.
+     */
+    private final Timer updateTimer;
+
+    private final EventListenerList listenerList = new EventListenerList();
+
+    /**
+     * Creates an estimator for a project and begins listening to its measurements. The durations recorded in the
+     * project's steps are used for the estimates. Should be called only by the project; the views should use {@link
+     * Project#getRemainingTimeEstimator()}.
+     *
+     * @param project the project to be estimated.
+     * @throws NullPointerException if project is null.
+     */
+    RemainingTimeEstimator(Project project) {
+        this.project = project;
+        for (int i = 0; i < project.getSteps(); i++) {
+            addRecorded(project.getStep(i).getTiming());
+        }
+        updateTimer = new Timer(UPDATE_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                fireStateChanged();
+            }
+        });
+        project.addMeasurementListener(this);
+    }
+
+    /**
+     * Stops listening to the project's measurements.
+     */
+    void dispose() {
+        project.removeMeasurementListener(this);
+        updateTimer.stop();
+    }
+
+    /**
+     * Returns the project whose measurement is estimated.
+     */
+    public Project getProject() {
+        return project;
+    }
+
+    public void measurementUpdated(MeasurementEvent event) {
+        boolean measuring;
+        synchronized (this) {
+            update(event);
+            measuring = currentOperations != null;
+        }
+        if (measuring) {
+            updateTimer.start();
+        } else {
+            updateTimer.stop();
+        }
+        fireStateChanged();
+    }
+
+    /**
+     * Follows the progress of the step being measured according to a measurement event.
+     */
+    private synchronized void update(MeasurementEvent event) {
+        switch (event.getType()) {
+        case STEP_START:
+            currentOperations = planFor(event.getStep()).getOperations();
+            currentIndex = 0;
+            currentStart = System.nanoTime();
+            break;
+        case HANDLER_STOP:
+            advance(MOVE, ROTATE);
+            break;
+        case DEMAGNETIZE_END:
+            advance(DEMAG);
+            break;
+        case VALUE_MEASURED:
+            advance(READ);
+            break;
+        case STEP_END:
+            addRecorded(event.getStep().getTiming());
+            currentOperations = null;
+            break;
+        case STEP_ABORTED:
+            currentOperations = null;
+            break;
+        }
+    }
+
+    /**
+     * Marks the next operation of one of the specified types finished, together with all operations before it.
+     */
+    private void advance(MeasurementPlan.Type... types) {
+        if (currentOperations == null) {
+            return;
+        }
+        for (int i = currentIndex; i < currentOperations.size(); i++) {
+            for (MeasurementPlan.Type type : types) {
+                if (currentOperations.get(i).getType() == type) {
+                    currentIndex = i + 1;
+                    currentStart = System.nanoTime();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the durations of a step to the recorded durations.
+     *
+     * @param timing the timing of a step, or null to do nothing.
+     */
+    private synchronized void addRecorded(StepTiming timing) {
+        if (timing == null) {
+            return;
+        }
+        for (String operation : timing.getOperations()) {
+            StepTiming.Histogram histogram = timing.getHistogram(operation);
+            long[] sum = recorded.get(operation);
+            if (sum == null) {
+                sum = new long[2];
+                recorded.put(operation, sum);
+            }
+            sum[0] += histogram.getCount();
+            sum[1] += histogram.getTotal();
+        }
+    }
+
+    /**
+     * Returns the mean recorded duration of an operation type in milliseconds, or the default value if none has been
+     * recorded.
+     */
+    private long getRecorded(String operation, long defaultValue) {
+        long[] sum = recorded.get(operation);
+        if (sum == null || sum[0] == 0) {
+            return defaultValue;
+        }
+        return sum[1] / sum[0] / 1000000;
+    }
+
+    /**
+     * Returns the estimated time in milliseconds that the step being measured will still take, or 0 if no step is
+     * being measured.
+     */
+    public synchronized long getStepRemaining() {
+        if (currentOperations == null) {
+            return 0;
+        }
+        long remaining = estimate(currentOperations, currentIndex);
+        long elapsed = (System.nanoTime() - currentStart) / 1000000;
+
+        // the operation being run is the first after the finished ones, not counting checkpoints
+        int running = currentIndex;
+        while (running < currentOperations.size() && currentOperations.get(running).isCheckpoint()) {
+            running++;
+        }
+        long current = 0;
+        if (running < currentOperations.size()) {
+            current = estimate(currentOperations.subList(0, running + 1), running);
+        }
+        return remaining - Math.min(elapsed, current);
+    }
+
+    /**
+     * Returns the estimated time in milliseconds that the measurement of all the remaining steps of the project will
+     * take, including the step being measured. When the running measurement will stop before some step, the steps
+     * from there on are not counted (see {@link Project#getMeasurementEnd()}).
+     */
+    public synchronized long getSequenceRemaining() {
+        long remaining = getStepRemaining();
+        int end = project.getMeasurementEnd();
+        for (int i = 0; i < end; i++) {
+            MeasurementStep step = project.getStep(i);
+            if (step.getState() == MeasurementStep.State.READY) {
+                remaining += getStepEstimate(step);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Returns the estimated time in milliseconds that the measurement of the specified step will take.
+     */
+    public synchronized long getStepEstimate(MeasurementStep step) {
+        return estimate(planFor(step).getOperations(), 0);
+    }
+
+    /**
+     * Returns the plan with which the step would be measured, when the handler starts from the background position.
+     */
+    private MeasurementPlan planFor(MeasurementStep step) {
+        return project.getMeasurementPlan(step).optimize(0, MeasurementPlan.Position.BACKGROUND);
+    }
+
+    /**
+     * Estimates the duration of a list of operations in milliseconds, starting from the specified index. The handler is
+     * expected to be in the background position at 0 degrees before the first operation of the list. The operations
+     * before the start index are taken as finished.
+     * <p/>
+     * Every operation begins when the preceding operations that it conflicts with have finished, the same way as
+     * Project runs them, and the estimate is the time when the last operation finishes.
+     */
+    private long estimate(List<MeasurementPlan.Operation> operations, int start) {
+        MeasurementPlan.Position position = MeasurementPlan.Position.BACKGROUND;
+        int rotation = 0;
+        long[] finished = new long[operations.size()];
+        long total = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            MeasurementPlan.Operation op = operations.get(i);
+            long duration = 0;
+            switch (op.getType()) {
+            case MOVE:
+                duration = estimateMove(position, op.getPosition());
+                position = op.getPosition();
+                break;
+            case ROTATE:
+                duration = estimateRotation(rotation, op.getAngle());
+                rotation = op.getAngle();
+                break;
+            case DEMAG:
+                duration = getRecorded(DEMAG.name(), DEFAULT_DEMAG);
+                break;
+            case RESET:
+                duration = getRecorded(RESET.name(), DEFAULT_RESET);
+                break;
+            case READ:
+                duration = getRecorded(READ.name(), DEFAULT_READ_PER_SAMPLE * Settings.getMagnetometerSamples());
+                break;
+            }
+            if (i < start) {
+                continue;
+            }
+
+            // begin after the conflicting operations, a checkpoint depends on everything before it
+            long begin = 0;
+            for (int j = i - 1; j >= start; j--) {
+                if (op.conflictsWith(operations.get(j))) {
+                    begin = Math.max(begin, finished[j]);
+                    if (operations.get(j).isCheckpoint()) {
+                        break;
+                    }
+                }
+            }
+            finished[i] = begin + duration;
+            total = Math.max(total, finished[i]);
+        }
+        return total;
+    }
+
+    /**
+     * Estimates the time in milliseconds that moving the handler between two positions takes. Moving on the
+     * measurement side of the background position is done with the measurement velocity.
+     */
+    private static long estimateMove(MeasurementPlan.Position from, MeasurementPlan.Position to) {
+        if (from == to) {
+            return 0;
+        }
+        int a = getSteps(from);
+        int b = getSteps(to);
+        int background = Settings.getHandlerBackgroundPosition();
+        int fast = Math.abs(Math.min(a, background) - Math.min(b, background));
+        int slow = Math.abs(Math.max(a, background) - Math.max(b, background));
+        return MOTOR_OVERHEAD + stepsToMillis(fast, Settings.getHandlerVelocity())
+                + stepsToMillis(slow, Settings.getHandlerMeasurementVelocity());
+    }
+
+    /**
+     * Estimates the time in milliseconds that rotating the handler from one angle to another takes. The handler always
+     * rotates forward. Angles of 360 or more continue the rotation forward (see {@link
+     * ikayaki.squid.Handler#rotateTo(int)}), so rotating for example from 0 to 360 is a full turn.
+     */
+    private static long estimateRotation(int from, int to) {
+        int angle;
+        if (to >= 360 && to > from) {
+            angle = to - from;
+        } else {
+            angle = ((to - from) % 360 + 360) % 360;
+        }
+        if (angle == 0) {
+            return 0;
+        }
+        int steps = (int) ((long) Settings.getHandlerRotation() * angle / 360);
+        return MOTOR_OVERHEAD + stepsToMillis(steps, Settings.getHandlerRotationVelocity());
+    }
+
+    /**
+     * Returns the handler position of the specified measurement position in steps.
+     */
+    private static int getSteps(MeasurementPlan.Position position) {
+        switch (position) {
+        case DEGAUSSER_Z:
+            return Settings.getHandlerAxialAFPosition();
+        case DEGAUSSER_Y:
+            return Settings.getHandlerTransverseYAFPosition();
+        case BACKGROUND:
+            return Settings.getHandlerBackgroundPosition();
+        case MEASUREMENT:
+            return Settings.getHandlerMeasurementPosition();
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Converts steps to milliseconds at the specified velocity (steps per second).
+     */
+    private static long stepsToMillis(int steps, int velocity) {
+        if (steps == 0 || velocity <= 0) {
+            return 0;
+        }
+        return 1000L * steps / velocity;
+    }
+
+    /**
+     * Adds a ChangeListener which will be notified when the estimates change.
+     */
+    public void addChangeListener(ChangeListener l) {
+        synchronized (listenerList) {
+            listenerList.add(ChangeListener.class, l);
+        }
+    }
+
+    /**
+     * Removes a ChangeListener from the estimator.
+     */
+    public void removeChangeListener(ChangeListener l) {
+        synchronized (listenerList) {
+            listenerList.remove(ChangeListener.class, l);
+        }
+    }
+
+    /**
+     * Notifies all listeners that have registered for ChangeEvents.
+     */
+    private void fireStateChanged() {
+        ChangeListener[] listeners;
+        synchronized (listenerList) {
+            listeners = listenerList.getListeners(ChangeListener.class);
+        }
+        ChangeEvent event = new ChangeEvent(this);
+        for (ChangeListener l : listeners) {
+            try {
+                l.stateChanged(event);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Formats a duration as "h:mm:ss" or "m:ss".
+     *
+     * @param millis the duration in milliseconds.
+     * @return the formatted duration.
+     */
+    public static String formatTime(long millis) {
+        long seconds = Math.max(0, (millis + 999) / 1000);
+        long h = seconds / 3600;
+        long m = seconds / 60 % 60;
+        long s = seconds % 60;
+        if (h > 0) {
+            return String.format("%d:%02d:%02d", h, m, s);
+        } else {
+            return String.format("%d:%02d", m, s);
+        }
+    }
+}
@@ -338,6 +338,36 @@ public class Settings {
         return true;
     }
 
+    /**
+     * Tells whether the device in the specified serial port needs a fixed delay between messages. Otherwise the delay
+     * is calculated from the baud rate and the length of the messages.
+     */
+    public static synchronized boolean getSerialFixedDelay(String port) {
+        for (String s : getProperty("squid.serial.fixeddelay", "").split(",")) {
+            if (s.equals(port)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static synchronized boolean setSerialFixedDelay(String port, boolean value) {
+        if (port == null || port.length() == 0 || port.indexOf(',') >= 0) {
+            return false;
+        }
+        String ports = "";
+        for (String s : getProperty("squid.serial.fixeddelay", "").split(",")) {
+            if (s.length() > 0 && !s.equals(port)) {
+                ports += (ports.length() > 0 ? "," : "") + s;
+            }
+        }
+        if (value) {
+            ports += (ports.length() > 0 ? "," : "") + port;
+        }
+        setProperty("squid.serial.fixeddelay", ports.length() > 0 ? ports : null);
+        return true;
+    }
+
     /* Magnetometer */
 
     public static synchronized double getMagnetometerXAxisCalibration() {
@@ -367,6 +397,94 @@ public class Settings {
         return true;
     }
 
+    /**
+     * Tells whether the magnetometer queries are sent back-to-back without waiting for the previous answers. Off by
+     * default, because not every magnetometer has been verified to queue the queries.
+     */
+    public static synchronized boolean getMagnetometerPipelined() {
+        return Boolean.parseBoolean(getProperty("squid.magnetometer.pipelined", "false"));
+    }
+
+    public static synchronized boolean setMagnetometerPipelined(boolean value) {
+        setProperty("squid.magnetometer.pipelined", Boolean.toString(value));
+        return true;
+    }
+
+    /**
+     * The number of analog samples that are read and averaged for every axis in one magnetometer reading.
+     */
+    public static synchronized int getMagnetometerSamples() {
+        return Integer.parseInt(getProperty("squid.magnetometer.samples", "1"));
+    }
+
+    public static synchronized boolean setMagnetometerSamples(int value) {
+        if (value < 1) {
+            return false;
+        }
+        setProperty("squid.magnetometer.samples", Integer.toString(value));
+        return true;
+    }
+
+    /**
+     * Tells whether the magnetometer waits only until its analog values are stable before reading, instead of always
+     * waiting the maximum settle delay.
+     */
+    public static synchronized boolean getMagnetometerSettleAdaptive() {
+        return Boolean.parseBoolean(getProperty("squid.magnetometer.settle.adaptive", "false"));
+    }
+
+    public static synchronized boolean setMagnetometerSettleAdaptive(boolean value) {
+        setProperty("squid.magnetometer.settle.adaptive", Boolean.toString(value));
+        return true;
+    }
+
+    /**
+     * The largest difference between two successive analog values of an axis, with which the magnetometer is
+     * considered to be stable.
+     */
+    public static synchronized double getMagnetometerSettleTolerance() {
+        return Double.parseDouble(getProperty("squid.magnetometer.settle.tolerance", "0.01"));
+    }
+
+    public static synchronized boolean setMagnetometerSettleTolerance(double value) {
+        if (value < 0.0) {
+            return false;
+        }
+        setProperty("squid.magnetometer.settle.tolerance", Double.toString(value));
+        return true;
+    }
+
+    /**
+     * Interval in milliseconds between the analog values that are compared when waiting for the magnetometer to
+     * settle.
+     */
+    public static synchronized int getMagnetometerSettleInterval() {
+        return Integer.parseInt(getProperty("squid.magnetometer.settle.interval", "100"));
+    }
+
+    public static synchronized boolean setMagnetometerSettleInterval(int value) {
+        if (value < 0) {
+            return false;
+        }
+        setProperty("squid.magnetometer.settle.interval", Integer.toString(value));
+        return true;
+    }
+
+    /**
+     * The longest time in milliseconds to wait for the magnetometer to settle before reading.
+     */
+    public static synchronized int getMagnetometerSettleMaxDelay() {
+        return Integer.parseInt(getProperty("squid.magnetometer.settle.maxdelay", "1000"));
+    }
+
+    public static synchronized boolean setMagnetometerSettleMaxDelay(int value) {
+        if (value < 0) {
+            return false;
+        }
+        setProperty("squid.magnetometer.settle.maxdelay", Integer.toString(value));
+        return true;
+    }
+
     /* Degausser */
 
     public static synchronized int getDegausserRamp() {
@@ -416,6 +534,21 @@ public class Settings {
         return 0.1;
     }
 
+    /**
+     * Interval in milliseconds for polling the status of the degausser, when waiting for it to finish a command.
+     */
+    public static synchronized int getDegausserPollInterval() {
+        return Integer.parseInt(getProperty("squid.degausser.pollinterval", "200"));
+    }
+
+    public static synchronized boolean setDegausserPollInterval(int value) {
+        if (value < 0) {
+            return false;
+        }
+        setProperty("squid.degausser.pollinterval", Integer.toString(value));
+        return true;
+    }
+
     /* Sample handler */
 
     public static synchronized int getHandlerAcceleration() {
@@ -596,6 +729,35 @@ public class Settings {
         return true;
     }
 
+    /**
+     * How often the handler seeks the home rotation when rotating to zero. A value of N means that every Nth rotation
+     * to zero seeks home and the others are done by counting steps. 1 means that home is always sought.
+     */
+    public static synchronized int getHandlerRehomeInterval() {
+        return Integer.parseInt(getProperty("squid.handler.rehome.interval", "1"));
+    }
+
+    public static synchronized boolean setHandlerRehomeInterval(int value) {
+        if (value < 1) {
+            return false;
+        }
+        setProperty("squid.handler.rehome.interval", Integer.toString(value));
+        return true;
+    }
+
+    /**
+     * The largest difference in steps between the rotation counter of the handler and the expected rotation, which is
+     * allowed before seeking home. A negative value disables the check.
+     */
+    public static synchronized int getHandlerRehomeDriftTolerance() {
+        return Integer.parseInt(getProperty("squid.handler.rehome.drifttolerance", "-1"));
+    }
+
+    public static synchronized boolean setHandlerRehomeDriftTolerance(int value) {
+        setProperty("squid.handler.rehome.drifttolerance", Integer.toString(value));
+        return true;
+    }
+
     /* Other settings for measurements */
 
     /**
@@ -614,6 +776,48 @@ public class Settings {
         }
     }
 
+    /**
+     * If true, the closing background reading of a step will be reused as the opening background reading of the next
+     * step, when the next step is not demagnetized and is begun soon enough.
+     */
+    public static synchronized boolean getMeasurementShareBackground() {
+        return Boolean.parseBoolean(getProperty("measurement.sharebackground", "false"));
+    }
+
+    public static synchronized boolean setMeasurementShareBackground(boolean value) {
+        setProperty("measurement.sharebackground", Boolean.toString(value));
+        return true;
+    }
+
+    /**
+     * The longest time in seconds between the closing background reading of a step and the beginning of the next step,
+     * for the background reading to be reused.
+     */
+    public static synchronized int getMeasurementShareBackgroundMaxGap() {
+        return Integer.parseInt(getProperty("measurement.sharebackground.maxgap", "60"));
+    }
+
+    public static synchronized boolean setMeasurementShareBackgroundMaxGap(int value) {
+        if (value < 0) {
+            return false;
+        }
+        setProperty("measurement.sharebackground.maxgap", Integer.toString(value));
+        return true;
+    }
+
+    /**
+     * If true, the handler keeps rotating forward from 270 degrees to the next rotation, instead of rotating back to 0
+     * (and possibly seeking home) between the rotations. Home is then sought only at the end of the step.
+     */
+    public static synchronized boolean getMeasurementContinuousRotation() {
+        return Boolean.parseBoolean(getProperty("measurement.continuousrotation", "false"));
+    }
+
+    public static synchronized boolean setMeasurementContinuousRotation(boolean value) {
+        setProperty("measurement.continuousrotation", Boolean.toString(value));
+        return true;
+    }
+
     /* Program window */
 
     public static synchronized int getWindowWidth() {
@@ -0,0 +1,261 @@
+/*
+ * StepExecutor.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki;
+
+import ikayaki.squid.DeviceExecutor;
+import ikayaki.squid.Squid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the device operations of one measurement step as a dependency graph. Every operation names the operations that
+ * must be finished before it may begin. The operations are run by the DeviceExecutor of the Squid, in the queue of the
+ * device that they use, so they are serialized with all other commands of the same device and are cancelled together
+ * with them when the Squid is aborted. An operation waits in the worker thread of its device until its dependencies
+ * have finished. Operations that do not depend on each other (for example preparing the magnetometer while the handler
+ * is moving) will so run concurrently, and only the orderings that are declared explicitly are serialized.
+ * <p/>
+ * The dependencies must have been added before the operations that depend on them, which keeps the graph free of
+ * cycles. Operations that do not use any device are run in the thread that adds them, after their dependencies have
+ * finished.
+ * <p/>
+ * If an operation fails, all operations that depend on it will fail with the same exception without being run. The
+ * exception is rethrown to whoever waits for the operation with {@link #await(Operation[])}.
+ *
+ * @author agent
+ */
+public class StepExecutor {
+
+    /**
+     * Name of the step, used for naming the commands.
+     */
+    private final String name;
+
+    /**
+     * The executor whose device queues run the operations.
+     */
+    private final DeviceExecutor devices;
+
+    /**
+     * All operations that have been added to this executor, in the order of adding.
+     */
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    /**
+     * true if cancelAll() has been called. The operations added after it are cancelled without being run.
+     */
+    private boolean cancelled = false;
+
+    /**
+     * Creates an empty executor.
+     *
+     * @param name    name of the step, used for naming the commands.
+     * @param devices the executor whose device queues will run the operations.
+     */
+    public StepExecutor(String name, DeviceExecutor devices) {
+        this.name = name;
+        this.devices = devices;
+    }
+
+    /**
+     * Adds an operation and submits it to the queue of its device. The operation will wait for its dependencies to
+     * finish before running the task. An operation without a device is run immediately in the current thread. If
+     * the executor has been cancelled, the operation is cancelled without being run.
+     *
+     * @param name         a short description of the operation.
+     * @param device       the device used by the operation, or null if it does not use any.
+     * @param task         the work to be done.
+     * @param dependencies the operations that must be finished before this operation may begin.
+     * @return the new operation, which can be used as a dependency for later operations.
+     * @throws NullPointerException if task is null.
+     */
+    public Operation add(String name, Squid.Device device, Task task, Operation... dependencies) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        Operation operation = new Operation(name, task, dependencies);
+        synchronized (this) {
+            operations.add(operation);
+            if (cancelled) {
+                operation.future.cancel(false);
+                return operation;
+            }
+        }
+        if (device == null) {
+            operation.run();
+        } else {
+            devices.submit(device, DeviceExecutor.Priority.NORMAL, this.name + ": " + name, operation.future);
+        }
+        return operation;
+    }
+
+    /**
+     * Waits for the specified operations to finish.
+     *
+     * @param operations the operations to wait for.
+     * @throws InterruptedException  if one of the operations threw an InterruptedException, or if the current thread
+     *                               was interrupted while waiting.
+     * @throws IllegalStateException if one of the operations threw an IllegalStateException.
+     */
+    public void await(Operation... operations) throws InterruptedException {
+        for (Operation operation : operations) {
+            operation.await();
+        }
+    }
+
+    /**
+     * Waits for all of the operations that have been added to this executor to finish.
+     *
+     * @throws InterruptedException  if one of the operations threw an InterruptedException, or if the current thread
+     *                               was interrupted while waiting.
+     * @throws IllegalStateException if one of the operations threw an IllegalStateException.
+     */
+    public void awaitAll() throws InterruptedException {
+        Operation[] all;
+        synchronized (this) {
+            all = operations.toArray(new Operation[operations.size()]);
+        }
+        await(all);
+    }
+
+    /**
+     * Cancels all operations that have not yet finished. Operations that are already running will be interrupted. The
+     * cancelled operations stay in the queues of their devices, but will do nothing when their turn comes. The
+     * operations added after this are cancelled as well.
+     */
+    public synchronized void cancelAll() {
+        cancelled = true;
+        for (Operation operation : operations) {
+            operation.future.cancel(true);
+        }
+    }
+
+    /**
+     * One unit of work in a step, for example one handler movement or one magnetometer reading.
+     *
+     * @author agent
+     */
+    public interface Task {
+
+        /**
+         * Does the work. The InterruptedException is used for signaling that the operation failed or was aborted, in
+         * the same manner as in the measurement code.
+         *
+         * @throws InterruptedException if the operation failed or was aborted.
+         */
+        public void run() throws InterruptedException;
+    }
+
+    /**
+     * An operation of a StepExecutor, together with the operations that it depends on.
+     *
+     * @author agent
+     */
+    public static class Operation {
+
+        /**
+         * A short description of the operation.
+         */
+        private final String name;
+
+        /**
+         * The operations that must be finished before this may begin.
+         */
+        private final Operation[] dependencies;
+
+        /**
+         * The result of this operation. Is done after the task has been run or one of the dependencies has failed.
+         */
+        private final FutureTask<Object> future;
+
+        private Operation(String name, final Task task, Operation[] dependencies) {
+            this.name = name;
+            this.dependencies = dependencies.clone();
+            this.future = new FutureTask<Object>(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (Operation dependency : Operation.this.dependencies) {
+                        dependency.await();
+                    }
+                    task.run();
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Runs the operation in the current thread. Used for operations that do not use any device.
+         */
+        private void run() {
+            future.run();
+        }
+
+        /**
+         * Returns a short description of the operation.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns true if the operation has finished, either successfully or not.
+         */
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        /**
+         * Waits for this operation to finish and rethrows its exception, if it failed.
+         *
+         * @throws InterruptedException  if the operation threw an InterruptedException or was cancelled, or if the
+         *                               current thread was interrupted while waiting.
+         * @throws IllegalStateException if the operation threw an IllegalStateException.
+         */
+        private void await() throws InterruptedException {
+            try {
+                future.get();
+            } catch (CancellationException e) {
+                throw new InterruptedException(name + " was cancelled");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new IllegalStateException(name + " failed", cause);
+                }
+            }
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * StepTiming.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The durations of the operations done while measuring one step. The durations are grouped by the type of operation
+ * (for example the names of {@link MeasurementPlan.Type}) and for every type a histogram is kept. The durations are
+ * measured with System.nanoTime().
+ * <p/>
+ * All operations are thread-safe.
+ *
+ * @author agent
+ */
+public class StepTiming {
+
+    /**
+     * The operation name for the duration of the whole step.
+     */
+    public static final String STEP = "STEP";
+
+    /**
+     * The operation name for the time the magnetometer waited for its output to settle before a reading.
+     */
+    public static final String SETTLE = "SETTLE";
+
+    /**
+     * The upper limits of the histogram buckets in milliseconds. The last bucket has no upper limit.
+     */
+    private static final long[] BUCKET_LIMITS = {10, 30, 100, 300, 1000, 3000, 10000, 30000};
+
+    /**
+     * The histograms of the operations by their names.
+     */
+    private final Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+
+    /**
+     * Creates an empty timing profile.
+     */
+    public StepTiming() {
+    }
+
+    /**
+     * Creates a timing profile from the specified element.
+     *
+     * @param element the element from which the profile will be created.
+     * @throws NullPointerException     if element is null.
+     * @throws IllegalArgumentException if the element was not in the right format.
+     */
+    public StepTiming(Element element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        // verify tag name
+        if (!element.getTagName().equals("timing")) {
+            throw new IllegalArgumentException("Invalid tag name: " + element.getTagName());
+        }
+
+        // get histograms
+        NodeList operations = element.getElementsByTagName("operation");
+        for (int i = 0; i < operations.getLength(); i++) {
+            Element operation = (Element) operations.item(i);
+            histograms.put(operation.getAttribute("name"), new Histogram(operation));
+        }
+    }
+
+    /**
+     * Exports this profile to a DOM element.
+     *
+     * @param document the document that will contain this element.
+     */
+    public synchronized Element getElement(Document document) {
+        Element element = document.createElement("timing");
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Element operation = entry.getValue().getElement(document);
+            operation.setAttribute("name", entry.getKey());
+            element.appendChild(operation);
+        }
+        return element;
+    }
+
+    /**
+     * Records the duration of one operation.
+     *
+     * @param operation the name of the operation type.
+     * @param nanos     the duration in nanoseconds.
+     * @throws NullPointerException if operation is null.
+     */
+    public synchronized void add(String operation, long nanos) {
+        if (operation == null) {
+            throw new NullPointerException();
+        }
+        Histogram histogram = histograms.get(operation);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(operation, histogram);
+        }
+        histogram.add(nanos);
+    }
+
+    /**
+     * Returns the names of the operation types that have been recorded.
+     */
+    public synchronized Set<String> getOperations() {
+        return new TreeSet<String>(histograms.keySet());
+    }
+
+    /**
+     * Returns a copy of the histogram of the specified operation type.
+     *
+     * @param operation the name of the operation type.
+     * @return the histogram, or null if no such operations have been recorded.
+     */
+    public synchronized Histogram getHistogram(String operation) {
+        Histogram histogram = histograms.get(operation);
+        if (histogram == null) {
+            return null;
+        }
+        return new Histogram(histogram);
+    }
+
+    /**
+     * Returns the upper limit in milliseconds of the specified histogram bucket, or Long.MAX_VALUE for the last
+     * bucket.
+     */
+    public static long getBucketLimit(int bucket) {
+        if (bucket < BUCKET_LIMITS.length) {
+            return BUCKET_LIMITS[bucket];
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of histogram buckets.
+     */
+    public static int getBuckets() {
+        return BUCKET_LIMITS.length + 1;
+    }
+
+    public synchronized String toString() {
+        return histograms.toString();
+    }
+
+    /**
+     * The number, total, minimum and maximum of the durations of one operation type, and how they are distributed
+     * into the buckets.
+     *
+     * @author agent
+     */
+    public static class Histogram {
+
+        private int count = 0;
+        private long total = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = 0;
+        private final int[] buckets = new int[getBuckets()];
+
+        private Histogram() {
+        }
+
+        private Histogram(Histogram other) {
+            count = other.count;
+            total = other.total;
+            min = other.min;
+            max = other.max;
+            System.arraycopy(other.buckets, 0, buckets, 0, buckets.length);
+        }
+
+        private Histogram(Element element) {
+            try {
+                count = Integer.parseInt(element.getAttribute("count"));
+                total = Long.parseLong(element.getAttribute("total"));
+                min = Long.parseLong(element.getAttribute("min"));
+                max = Long.parseLong(element.getAttribute("max"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid operation: " + element.getAttribute("name"), e);
+            }
+            String[] s = element.getAttribute("buckets").split(",");
+            for (int i = 0; i < s.length && i < buckets.length; i++) {
+                try {
+                    buckets[i] = Integer.parseInt(s[i]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid buckets: " + element.getAttribute("buckets"), e);
+                }
+            }
+        }
+
+        private Element getElement(Document document) {
+            Element element = document.createElement("operation");
+            element.setAttribute("count", Integer.toString(count));
+            element.setAttribute("total", Long.toString(total));
+            element.setAttribute("min", Long.toString(min));
+            element.setAttribute("max", Long.toString(max));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < buckets.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(buckets[i]);
+            }
+            element.setAttribute("buckets", sb.toString());
+            return element;
+        }
+
+        private void add(long nanos) {
+            count++;
+            total += nanos;
+            min = Math.min(min, nanos);
+            max = Math.max(max, nanos);
+            long millis = nanos / 1000000;
+            int i = 0;
+            while (i < BUCKET_LIMITS.length && millis >= BUCKET_LIMITS[i]) {
+                i++;
+            }
+            buckets[i]++;
+        }
+
+        /**
+         * Returns the number of recorded durations.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the sum of the durations in nanoseconds.
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Returns the mean duration in nanoseconds, or NaN if there are none.
+         */
+        public double getMean() {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            return (double) total / count;
+        }
+
+        /**
+         * Returns the shortest duration in nanoseconds, or 0 if there are none.
+         */
+        public long getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        /**
+         * Returns the longest duration in nanoseconds.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the number of durations in the specified bucket. See {@link StepTiming#getBucketLimit(int)}.
+         */
+        public int getBucket(int bucket) {
+            return buckets[bucket];
+        }
+
+        public String toString() {
+            return count + " x " + Math.round(getMean() / 1000000) + " ms";
+        }
+    }
+}
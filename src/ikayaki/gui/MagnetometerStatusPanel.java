@@ -191,12 +191,18 @@ public class MagnetometerStatusPanel extends JPanel implements MeasurementListen
      */
     public void updateStatus() {
         if (squid != null) {
-            position = squid.getHandler().getEstimatedPosition();
-            rotation = squid.getHandler().getEstimatedRotation();
-            moving = squid.getHandler().isMoving();
-            rotating = squid.getHandler().isRotating();
-            measuring = squid.getMagnetometer().isMeasuring();
-            demagnetizing = squid.getDegausser().isDemagnetizing();
+            if (squid.getHandler() != null) {
+                position = squid.getHandler().getEstimatedPosition();
+                rotation = squid.getHandler().getEstimatedRotation();
+                moving = squid.getHandler().isMoving();
+                rotating = squid.getHandler().isRotating();
+            }
+            if (squid.getMagnetometer() != null) {
+                measuring = squid.getMagnetometer().isMeasuring();
+            }
+            if (squid.getDegausser() != null) {
+                demagnetizing = squid.getDegausser().isDemagnetizing();
+            }
         }
 //        statusAnimator.gone();
         repaint();
@@ -882,11 +888,30 @@ public class MagnetometerStatusPanel extends JPanel implements MeasurementListen
             if (squid == null) enabled = false;
             for (Component component : components) component.setEnabled(enabled);
 
+            // each device can be controlled as soon as it is ready
+            boolean handlerEnabled = enabled && project != null && project.isManualControlEnabled(Squid.Device.HANDLER);
+            boolean magnetometerEnabled = enabled && project != null
+                    && project.isManualControlEnabled(Squid.Device.MAGNETOMETER);
+            boolean degausserEnabled = enabled && project != null
+                    && project.isManualControlEnabled(Squid.Device.DEGAUSSER);
+            for (Component component : new Component[]{
+                moveLeft, moveHome, moveDemagZ, moveDemagY, moveBG, moveMeasure, moveRight,
+                rotate0, rotate90, rotate180, rotate270, moveLabel, rotateLabel}) {
+                component.setEnabled(handlerEnabled);
+            }
+            for (Component component : new Component[]{measureAllButton, resetAllButton, measureLabel}) {
+                component.setEnabled(magnetometerEnabled);
+            }
+            for (Component component : new Component[]{
+                demagAmplitudeField, demagAmplitudeLabel, demagZButton, demagYButton, demagLabel}) {
+                component.setEnabled(degausserEnabled);
+            }
+
             // set selected radioboxes and buttons according to current handler status
 
             // move-radiobuttons
             int currentPosition = 0;
-            if (squid != null) {
+            if (squid != null && squid.getHandler() != null) {
                 currentPosition = squid.getHandler().getPosition();
             }
             if (currentPosition == Integer.MIN_VALUE) {
@@ -926,7 +951,7 @@ public class MagnetometerStatusPanel extends JPanel implements MeasurementListen
             }
 
             // demag-button text and enabled status
-            demagButton.setEnabled(enabled && project != null && project.isDegaussingEnabled());
+            demagButton.setEnabled(degausserEnabled && project.isDegaussingEnabled());
             if (position == posDemagZ) {
                 demagButtonIsY = false;
                 demagButton.setText(demagButtonBaseText + "Z");
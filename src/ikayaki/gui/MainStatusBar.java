@@ -22,7 +22,16 @@
 
 package ikayaki.gui;
 
+import ikayaki.MeasurementEvent;
+import ikayaki.MeasurementStep;
+import ikayaki.Project;
+import ikayaki.ProjectEvent;
+import ikayaki.RemainingTimeEstimator;
+
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
 
 /**
  * Creates its components and listens project events on status change and calculates estimated time for measurement
@@ -46,34 +55,147 @@ measurement
     private JProgressBar measurementProgress;
 
     /**
-     * current projects sequence
+     * estimated remaining time of the current step and the whole sequence
+     */
+    private JLabel remainingTime;
+
+    /**
+     * estimates the remaining time of the current project, or null if there is no project
      */
-    private int[] currentSequence;
+    private RemainingTimeEstimator estimator;
 
     /**
-     * current projects type (we know if we are doing demagnetization or not)
+     * updates the remaining time when the estimates change
      */
-    private int projectType;
+    private final ChangeListener estimatorListener = new ChangeListener() {
+        public void stateChanged(ChangeEvent e) {
+            calculateStatus();
+        }
+    };
+
+    /**
+     * why the measurement was stopped automatically, or null if it was not
+     */
+    private String autoStopReason;
 
     /**
      * Creates all components with default settings and sets Listener for MeasurementEvent.
      */
     public MainStatusBar() {
-        add(new JLabel("Status bar"));
-        return; // TODO
+        measurementStatus = new JLabel();
+        measurementProgress = new JProgressBar(0, 1);
+        measurementProgress.setStringPainted(true);
+        remainingTime = new JLabel();
+
+        setLayout(new BorderLayout(8, 0));
+        setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+        add(measurementStatus, BorderLayout.CENTER);
+        add(remainingTime, BorderLayout.WEST);
+        add(measurementProgress, BorderLayout.EAST);
+
+        setProject(null);
     }
 
     /**
-     * Recalculates current progress and updates status.
+     * Sets the project and begins following its remaining time estimator.
+     *
+     * @param project project opened, or null to open no project.
      */
-    private void calculateStatus(String phase, int sequenceStep, int currentStep) {
-        return; // TODO
+    @Override public void setProject(Project project) {
+        if (estimator != null) {
+            estimator.removeChangeListener(estimatorListener);
+            estimator = null;
+        }
+        super.setProject(project);
+        if (project != null) {
+            estimator = project.getRemainingTimeEstimator();
+            estimator.addChangeListener(estimatorListener);
+        }
+        measurementStatus.setText(null);
+        calculateStatus();
     }
 
     /**
-     * Formats status and creates new measurement status values.
+     * Starts or stops updating the remaining time according to the project's state.
+     *
+     * @param event ProjectEvent received.
      */
-    private void setMeasurement(int projectType, int[] sequence) {
-        return; // TODO
+    @Override public void projectUpdated(ProjectEvent event) {
+        if (event.getType() == ProjectEvent.Type.STATE_CHANGED && getProject().getState() == Project.State.IDLE) {
+            measurementStatus.setText(autoStopReason == null ? null : "Stopped: " + autoStopReason);
+            autoStopReason = null;
+        }
+        calculateStatus();
+    }
+
+    /**
+     * Updates the status text according to the measurement event and recalculates the progress.
+     *
+     * @param event MeasurementEvent received.
+     */
+    @Override public void measurementUpdated(MeasurementEvent event) {
+        switch (event.getType()) {
+        case STEP_START:
+        case VALUE_MEASURED:
+            measurementStatus.setText("Measuring step " + (getProject().getCompletedSteps() + 1));
+            break;
+        case HANDLER_MOVE:
+            measurementStatus.setText("Moving");
+            break;
+        case HANDLER_ROTATE:
+            measurementStatus.setText("Rotating");
+            break;
+        case DEMAGNETIZE_START:
+            measurementStatus.setText("Demagnetizing");
+            break;
+        case STEP_ABORTED:
+            measurementStatus.setText("Aborted");
+            break;
+        case AUTO_STOPPED:
+            autoStopReason = event.getMessage();
+            measurementStatus.setText("Stopped: " + autoStopReason);
+            break;
+        }
+        calculateStatus();
+    }
+
+    /**
+     * Recalculates current progress and updates status.
+     */
+    private void calculateStatus() {
+        Project project = getProject();
+        if (project == null || estimator == null) {
+            measurementProgress.setMaximum(1);
+            measurementProgress.setValue(0);
+            measurementProgress.setString("");
+            remainingTime.setText(null);
+            return;
+        }
+
+        // progress of the sequence
+        int total = project.getSteps();
+        int completed = project.getCompletedSteps();
+        measurementProgress.setMaximum(Math.max(total, 1));
+        measurementProgress.setValue(completed);
+        measurementProgress.setString(completed + " / " + total);
+
+        // remaining time
+        if (project.getState() == Project.State.IDLE) {
+            int pending = 0;
+            for (int i = 0; i < total; i++) {
+                if (project.getStep(i).getState() == MeasurementStep.State.READY) {
+                    pending++;
+                }
+            }
+            if (pending > 0) {
+                remainingTime.setText("Estimated time "
+                        + RemainingTimeEstimator.formatTime(estimator.getSequenceRemaining()));
+            } else {
+                remainingTime.setText(null);
+            }
+        } else {
+            remainingTime.setText("Step " + RemainingTimeEstimator.formatTime(estimator.getStepRemaining())
+                    + ", sequence " + RemainingTimeEstimator.formatTime(estimator.getSequenceRemaining()));
+        }
     }
-}
\ No newline at end of file
+}
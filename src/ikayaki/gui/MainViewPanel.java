@@ -37,6 +37,7 @@ import java.awt.event.KeyEvent;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Creates the main view panels (split panels) and Squid and Project components. It also tells everybody if the current
@@ -111,23 +112,25 @@ public class MainViewPanel extends ProjectComponent {
         /* Init SQUID interface */
         new Thread() {
             @Override public void run() {
+                // the devices will be initialized in the background, each device is usable as soon as it is ready
+                final Squid squid = Squid.startInstance();
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        setSquid(squid);
+                    }
+                });
+
                 try {
-                    final Squid squid = Squid.instance();       // might take a long time
+                    squid.getReady().get();     // might take a long time
                     if (!squid.isOK()) {
                         JOptionPane.showMessageDialog(getParentFrame(),
                                 "SQUID is not OK!", "Squid error", JOptionPane.ERROR_MESSAGE);
-                        return;
                     }
-                    SwingUtilities.invokeLater(new Runnable() {
-                        public void run() {
-                            setSquid(squid);
-                        }
-                    });
-
-                } catch (IOException e) {
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } catch (ExecutionException e) {
                     // TODO: what should be done now? give error message?
-                    //e.printStackTrace();
-                    System.err.println("Unable to initialize the SQUID interface.");
+                    System.err.println("Unable to initialize the SQUID interface: " + e.getCause());
                 }
             }
         }.start();
@@ -250,16 +253,16 @@ public class MainViewPanel extends ProjectComponent {
     }
 
     /**
-     * Returns the Squid instance used for communicating with the hardware, or null if the connection has not yet been
-     * fully initialized.
+     * Returns the Squid instance used for communicating with the hardware, or null if its initialization has not yet
+     * been started. Some of its devices may still be initializing.
      */
     public Squid getSquid() {
         return squid;
     }
 
     /**
-     * Sets the fully initialized Squid interface for the use of the program. Sets the active project the owner of the
-     * squid by re-setting the active project.
+     * Sets the Squid interface for the use of the program. Its devices may still be initializing. Sets the active
+     * project the owner of the squid by re-setting the active project.
      *
      * @param squid an instance of the Squid.
      * @throws NullPointerException  if squid is null.
@@ -345,6 +348,7 @@ public class MainViewPanel extends ProjectComponent {
         getMeasurementControlsPanel().setProject(project);
         getMeasurementDetailsPanel().setProject(project);
         getMeasurementGraphsPanel().setProject(project);
+        getStatusBar().setProject(project);
 
         // close the previous project if it is not the latest measuring project
         if (oldProject != null && oldProject != project && oldProject != latestMeasuringProject) {
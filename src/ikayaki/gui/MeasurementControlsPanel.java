@@ -25,8 +25,11 @@ package ikayaki.gui;
 import ikayaki.MeasurementEvent;
 import ikayaki.Project;
 import ikayaki.ProjectEvent;
+import ikayaki.RemainingTimeEstimator;
 
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -80,6 +83,25 @@ public class MeasurementControlsPanel extends ProjectComponent {
      */
     private final MagnetometerStatusPanel magnetometerStatusPanel;
 
+    /**
+     * Shows the estimated remaining time of the measurement.
+     */
+    private final JLabel remainingTimeLabel;
+
+    /**
+     * Estimates the remaining time of the current project, or null if there is no project.
+     */
+    private RemainingTimeEstimator estimator;
+
+    /**
+     * Updates remainingTimeLabel when the estimates change.
+     */
+    private final ChangeListener estimatorListener = new ChangeListener() {
+        public void stateChanged(ChangeEvent e) {
+            updateRemainingTime();
+        }
+    };
+
     /* Swing Actions */
     private Action autoStepAction;
     private Action singleStepAction;
@@ -125,8 +147,12 @@ public class MeasurementControlsPanel extends ProjectComponent {
         sampleInsertPanel.add(zButtonPanel, BorderLayout.CENTER);
         sampleInsertPanel.add(sampleInsertIconLabel, BorderLayout.SOUTH);
 
+        remainingTimeLabel = new JLabel(" ");
+        remainingTimeLabel.setHorizontalAlignment(SwingConstants.CENTER);
+
         JPanel topPanel = new JPanel(new BorderLayout(0, 8));
-        topPanel.add(buttonPanel, BorderLayout.CENTER);
+        topPanel.add(buttonPanel, BorderLayout.NORTH);
+        topPanel.add(remainingTimeLabel, BorderLayout.CENTER);
         topPanel.add(sampleInsertPanel, BorderLayout.SOUTH);
 
         magnetometerStatusPanel = new MagnetometerStatusPanel();
@@ -167,8 +193,17 @@ public class MeasurementControlsPanel extends ProjectComponent {
      * @param project project opened, or null to open no project.
      */
     @Override public void setProject(Project project) {
+        if (estimator != null) {
+            estimator.removeChangeListener(estimatorListener);
+            estimator = null;
+        }
         super.setProject(project);
+        if (project != null) {
+            estimator = project.getRemainingTimeEstimator();
+            estimator.addChangeListener(estimatorListener);
+        }
         updateActions();
+        updateRemainingTime();
         if (project != null) {
             setOrientation(project.getOrientation());
             if (project.getSquid() != null) {
@@ -186,6 +221,7 @@ public class MeasurementControlsPanel extends ProjectComponent {
     @Override public void projectUpdated(ProjectEvent event) {
         updateActions();
         manualControlsPanel.setEnabled();
+        updateRemainingTime();
     }
 
     /**
@@ -195,6 +231,20 @@ public class MeasurementControlsPanel extends ProjectComponent {
      */
     @Override public void measurementUpdated(MeasurementEvent event) {
         magnetometerStatusPanel.measurementUpdated(event);
+        updateRemainingTime();
+    }
+
+    /**
+     * Shows the estimated remaining time of the running measurement.
+     */
+    private void updateRemainingTime() {
+        if (getProject() == null || estimator == null || getProject().getState() == Project.State.IDLE) {
+            remainingTimeLabel.setText(" ");
+        } else {
+            String sequence = RemainingTimeEstimator.formatTime(estimator.getSequenceRemaining());
+            String step = RemainingTimeEstimator.formatTime(estimator.getStepRemaining());
+            remainingTimeLabel.setText("Remaining " + sequence + " (step " + step + ")");
+        }
     }
 
     /**
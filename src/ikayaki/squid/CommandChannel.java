@@ -0,0 +1,399 @@
+/*
+ * CommandChannel.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki.squid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends commands to the devices of one serial port and routes the replies to them. Every command that expects a reply
+ * gets a Future and a ReplyFormat. A received message is given to the oldest waiting Future whose format accepts the
+ * message, so that each reply goes to exactly one device even when several devices (such as the magnetometer and the
+ * degausser) share the port. Many commands may be waiting for their replies at the same time.
+ * <p/>
+ * Requests with the format {@link #ANY} get only the messages that no other waiting request accepts, so that they can
+ * not take the replies of the other devices on the same port. The devices on shared ports should nevertheless use
+ * specific formats for all their requests.
+ * <p/>
+ * A Future that has been cancelled or whose waiting has timed out keeps its place in the queue for a while, so that the
+ * late reply will be discarded and not given to the next command. All operations are thread-safe.
+ *
+ * @author agent
+ */
+public class CommandChannel implements SerialIOListener {
+
+    /**
+     * Accepts any reply that no request with a more specific format accepts.
+     */
+    public static final ReplyFormat ANY = new ReplyFormat() {
+        public boolean accepts(String message) {
+            return true;
+        }
+    };
+
+    /**
+     * Accepts replies that are decimal numbers.
+     */
+    public static final ReplyFormat NUMBER = new ReplyFormat() {
+        public boolean accepts(String message) {
+            try {
+                Double.parseDouble(message);
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    };
+
+    /**
+     * The channels of all opened ports.
+     */
+    private static final Map<SerialIO, CommandChannel> channels = new HashMap<SerialIO, CommandChannel>();
+
+    /**
+     * How long in milliseconds a cancelled request keeps waiting for its late reply. After that it is assumed that the
+     * reply was lost and the request is removed from the queue.
+     */
+    private static final int LATE_REPLY_MILLIS = 5000;
+
+    /**
+     * The port where the commands are written.
+     */
+    private final SerialIO serialIO;
+
+    /**
+     * The requests that are waiting for a reply, in the order that the replies are expected.
+     */
+    private final LinkedList<Reply> pending = new LinkedList<Reply>();
+
+    /**
+     * Returns the channel of a port. All devices on the same port share the same channel.
+     *
+     * @param serialIO the port of the device.
+     * @return the channel which listens to the port.
+     */
+    public static synchronized CommandChannel forPort(SerialIO serialIO) {
+        CommandChannel channel = channels.get(serialIO);
+        if (channel == null) {
+            channel = new CommandChannel(serialIO);
+            serialIO.addSerialIOListener(channel);
+            channels.put(serialIO, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Creates a channel which does not listen to the port. The devices should use {@link #forPort} instead, so that
+     * the devices on the same port share the channel.
+     *
+     * @param serialIO the port where the commands are written.
+     */
+    public CommandChannel(SerialIO serialIO) {
+        this.serialIO = serialIO;
+    }
+
+    /**
+     * Writes a command that does not have a reply.
+     *
+     * @param command the message to be written, including its terminator.
+     * @throws SerialIOException if writing to the port fails.
+     */
+    public synchronized void send(String command) throws SerialIOException {
+        serialIO.writeMessage(command);
+    }
+
+    /**
+     * Writes a command that will be answered with one reply.
+     *
+     * @param command the message to be written, including its terminator.
+     * @param format  the format of the reply.
+     * @return a Future which will receive the reply.
+     * @throws SerialIOException if writing to the port fails. The request is then cancelled.
+     */
+    public Future<String> request(String command, ReplyFormat format) throws SerialIOException {
+        return requestAll(command, format).get(0);
+    }
+
+    /**
+     * Writes a command that will be answered with many replies. The replies are reserved before the command is
+     * written, so the replies can not be claimed by anybody else.
+     *
+     * @param command the message to be written, including its terminator.
+     * @param formats the formats of the replies that the command will produce, in the order that they will arrive.
+     * @return a Future for each of the replies, in the order that they will arrive.
+     * @throws SerialIOException if writing to the port fails. The requests are then cancelled.
+     */
+    public synchronized List<Future<String>> requestAll(String command, ReplyFormat... formats)
+            throws SerialIOException {
+        List<Future<String>> futures = new ArrayList<Future<String>>(formats.length);
+        for (ReplyFormat format : formats) {
+            futures.add(expect(format));
+        }
+        try {
+            serialIO.writeMessage(command);
+        } catch (SerialIOException e) {
+            for (Future<String> future : futures) {
+                pending.remove(future);
+                future.cancel(false);
+            }
+            throw e;
+        }
+        return futures;
+    }
+
+    /**
+     * Reserves the next unclaimed reply of the specified format without writing anything. Used for messages that the
+     * device sends on its own after a command has completed.
+     *
+     * @param format the format of the reply.
+     * @return a Future which will receive the reply.
+     */
+    public synchronized Future<String> expect(ReplyFormat format) {
+        Reply reply = new Reply(format);
+        pending.add(reply);
+        return reply;
+    }
+
+    /**
+     * Gives a received message to the oldest request that is waiting for a reply of its format. If no request with a
+     * specific format accepts the message, it is given to the oldest request with the format ANY. Messages that nobody
+     * was waiting for are reported and discarded.
+     *
+     * @param message the received message.
+     */
+    public synchronized void deliver(String message) {
+        long now = System.currentTimeMillis();
+        Reply fallback = null;
+        for (Iterator<Reply> i = pending.iterator(); i.hasNext();) {
+            Reply reply = i.next();
+            if (reply.isCancelled() && now - reply.cancelledAt >= LATE_REPLY_MILLIS) {
+                i.remove();     // the reply was lost
+                continue;
+            }
+            if (reply.format == ANY) {
+                if (fallback == null) {
+                    fallback = reply;
+                }
+            } else if (reply.format.accepts(message)) {
+                i.remove();
+                reply.set(message);
+                return;
+            }
+        }
+        if (fallback != null) {
+            pending.remove(fallback);
+            fallback.set(message);
+            return;
+        }
+        System.err.println((serialIO != null ? serialIO.getPortName() : "?")
+                + ": Recieved a message that nobody waited for: " + message);
+    }
+
+    /**
+     * Cancels all requests that are waiting for a reply. Their replies will be discarded when they arrive.
+     */
+    public synchronized void cancelAll() {
+        for (Reply reply : pending) {
+            reply.cancel(false);
+        }
+    }
+
+    public void serialIOEvent(SerialIOEvent event) {
+        deliver(event.getCleanMessage());
+    }
+
+    /**
+     * Creates a format which accepts only the specified replies.
+     *
+     * @param replies the accepted replies.
+     * @return a format which accepts the replies that are equal to one of the parameters.
+     */
+    public static ReplyFormat oneOf(final String... replies) {
+        return new ReplyFormat() {
+            public boolean accepts(String message) {
+                for (String reply : replies) {
+                    if (reply.equals(message)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Creates a format which accepts only replies of the specified length that begin with the specified prefix.
+     *
+     * @param prefix the beginning of the accepted replies.
+     * @param length the length of the accepted replies.
+     * @return a format which accepts the replies that begin with prefix and are length characters long.
+     */
+    public static ReplyFormat startsWith(final String prefix, final int length) {
+        return new ReplyFormat() {
+            public boolean accepts(String message) {
+                return message.length() == length && message.startsWith(prefix);
+            }
+        };
+    }
+
+    /**
+     * Waits for a reply. If the reply does not arrive in time, the request is cancelled.
+     *
+     * @param future         the request whose reply to wait for.
+     * @param timeoutSeconds how long to wait for the reply, or 0 to wait without a limit.
+     * @return the reply, or null if the waiting timed out, was interrupted or the request was cancelled. If the waiting
+     *         was interrupted, the interrupted status of the current thread is set, so that the caller can find out
+     *         about it with Thread.interrupted().
+     */
+    public static String get(Future<String> future, int timeoutSeconds) {
+        return get(future, timeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits for a reply. If the reply does not arrive in time, the request is cancelled.
+     *
+     * @param future  the request whose reply to wait for.
+     * @param timeout how long to wait for the reply, or 0 to wait without a limit.
+     * @param unit    the unit of timeout.
+     * @return the reply, or null if the waiting timed out, was interrupted or the request was cancelled. If the waiting
+     *         was interrupted, the interrupted status of the current thread is set.
+     */
+    public static String get(Future<String> future, long timeout, TimeUnit unit) {
+        try {
+            return await(future, timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Waits for a reply. If the reply does not arrive in time or the waiting is interrupted, the request is cancelled.
+     *
+     * @param future         the request whose reply to wait for.
+     * @param timeoutSeconds how long to wait for the reply, or 0 to wait without a limit.
+     * @return the reply, or null if the waiting timed out or the request was cancelled.
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    public static String await(Future<String> future, int timeoutSeconds) throws InterruptedException {
+        return await(future, timeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits for a reply. If the reply does not arrive in time or the waiting is interrupted, the request is cancelled.
+     *
+     * @param future  the request whose reply to wait for.
+     * @param timeout how long to wait for the reply, or 0 to wait without a limit.
+     * @param unit    the unit of timeout.
+     * @return the reply, or null if the waiting timed out or the request was cancelled.
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    public static String await(Future<String> future, long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            if (timeout > 0) {
+                return future.get(timeout, unit);
+            } else {
+                return future.get();
+            }
+        } catch (TimeoutException e) {
+            System.err.println("Timeout while waiting for a reply");
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } catch (CancellationException e) {
+            return null;
+        }
+        future.cancel(false);
+        return null;
+    }
+
+    /**
+     * A Future for one reply.
+     */
+    private static class Reply extends FutureTask<String> {
+
+        private static final Callable<String> NOTHING = new Callable<String>() {
+            public String call() {
+                return null;
+            }
+        };
+
+        /**
+         * The format of the expected reply.
+         */
+        private final ReplyFormat format;
+
+        /**
+         * The time when this request was cancelled.
+         */
+        private volatile long cancelledAt;
+
+        public Reply(ReplyFormat format) {
+            super(NOTHING);
+            this.format = format;
+        }
+
+        /**
+         * Sets the reply, unless this request has been cancelled.
+         */
+        @Override public void set(String message) {
+            super.set(message);
+        }
+
+        /**
+         * The time is set before cancelling, so that deliver() will never see a cancelled request without it.
+         */
+        @Override public boolean cancel(boolean mayInterruptIfRunning) {
+            if (isDone()) {
+                return false;
+            }
+            cancelledAt = System.currentTimeMillis();
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * Tells whether a received message can be the reply to a request.
+     */
+    public interface ReplyFormat {
+
+        /**
+         * @param message the received message without its terminator.
+         * @return true if the message has this format.
+         */
+        public boolean accepts(String message);
+    }
+}
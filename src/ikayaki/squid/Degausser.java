@@ -24,9 +24,12 @@ package ikayaki.squid;
 
 import ikayaki.Settings;
 
-import java.util.Stack;
-import java.util.concurrent.SynchronousQueue;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Offers an interface for controlling the degausser (demagnetizer). Because the data link is implemented in the
@@ -35,18 +38,81 @@ import java.util.concurrent.TimeUnit;
  *
  * @author Aki Korpua
  */
-public class Degausser implements SerialIOListener {
+public class Degausser {
 
     /**
-     * buffer for incoming messages, readed when needed.
+     * Routes the replies from degausser to the commands that were sent. Shared with the other devices on the same
+     * port.
      */
-    private Stack<String> messageBuffer;
+    private CommandChannel channel;
+    private int pollTimeout = 60;
 
     /**
-     * Synchronous queue for waiting result message from degausser
+     * The longest time in milliseconds to wait for the degausser to process a new amplitude.
      */
-    private SynchronousQueue<String> queue;
-    private int pollTimeout = 60;
+    private static final int AMPLITUDE_TIMEOUT = 1500;
+
+    /**
+     * How long in milliseconds to wait for the answer to one status query while polling.
+     */
+    private static final int STATUS_POLL_TIMEOUT = 2000;
+
+    /**
+     * How long in milliseconds to wait for the DONE or TRACK ERROR message after the status has shown that the ramp
+     * has returned to zero.
+     */
+    private static final int RAMP_FINISHED_GRACE = 1000;
+
+    /**
+     * The length of the status line. The amplitude is at its end.
+     */
+    private static final int STATUS_LENGTH = 17;
+
+    /**
+     * The messages that tell that a ramp cycle has finished.
+     */
+    private static final CommandChannel.ReplyFormat RAMP_FINISHED = CommandChannel.oneOf("DONE", "TRACK ERROR");
+
+    /**
+     * The status line that follows the echo of DSS. It has the ramp status (Z, T or ?) at index 1, the ramp (one digit)
+     * at 4, the delay (one digit) at 7, the coil (X, Y, Z or ?) at 10 and the amplitude (four digits) at 13..16, and
+     * the characters between the fields are not digits. Numbers are never status lines, because the magnetometer may
+     * answer on the same port.
+     */
+    private static final CommandChannel.ReplyFormat STATUS_LINE = new CommandChannel.ReplyFormat() {
+        public boolean accepts(String message) {
+            if (message.length() < STATUS_LENGTH || CommandChannel.NUMBER.accepts(message)) {
+                return false;
+            }
+            for (int i = 0; i < STATUS_LENGTH; i++) {
+                char c = message.charAt(i);
+                boolean valid;
+                switch (i) {
+                case 1:
+                    valid = "ZT?".indexOf(c) >= 0;
+                    break;
+                case 4:
+                case 7:
+                case 13:
+                case 14:
+                case 15:
+                case 16:
+                    valid = Character.isDigit(c);
+                    break;
+                case 10:
+                    valid = "XYZ?".indexOf(c) >= 0;
+                    break;
+                default:
+                    valid = !Character.isDigit(c);
+                    break;
+                }
+                if (!valid) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
 
     /**
      * COM port for communication.
@@ -63,21 +129,32 @@ public class Degausser implements SerialIOListener {
      */
     private int degausserRamp;
 
-    private boolean waitingForMessage = false;
     private double minimumField;
     private double maximumField;
 
     private boolean demagnetizing = false;
 
+    /**
+     * The amplitude command (DCA####) and the coil that the degausser has last confirmed, or null and '?' if they are
+     * not known. Used for not setting them again if they would not change.
+     */
+    private String confirmedAmplitude = null;
+    private char confirmedCoil = '?';
+
+    /**
+     * How long in milliseconds the last setAmplitude and ramp cycle took to complete, or -1 if not known.
+     */
+    private int lastAmplitudeLatency = -1;
+    private int lastRampLatency = -1;
+
     /**
      * Creates a new degausser interface. Opens connection to degausser COM port (if not open yet) and reads settings
      * from the Setting class.
      */
     public Degausser() throws SerialIOException {
-        this.serialIO = SerialIO.openPort(new SerialParameters(Settings.getDegausserPort()));
-        serialIO.addSerialIOListener(this);
-        messageBuffer = new Stack<String>();
-        queue = new SynchronousQueue<String>();
+        this.serialIO = SerialIO.openPort(new SerialParameters(Settings.getDegausserPort(), 1200, 0, 0, 8, 1, 0,
+                Settings.getSerialFixedDelay(Settings.getDegausserPort()), '\r'));
+        channel = CommandChannel.forPort(serialIO);
         this.degausserDelay = Settings.getDegausserDelay();
         this.degausserRamp = Settings.getDegausserRamp();
         this.minimumField = Settings.getDegausserMinimumField();
@@ -126,8 +203,13 @@ public class Degausser implements SerialIOListener {
      */
     protected void setCoil(char coil) {
         if (coil == 'X' || coil == 'Y' || coil == 'Z') {
+            if (confirmedCoil == coil) {
+                return;
+            }
             try {
-                blockingWrite("DCC" + coil);
+                if (blockingWrite("DCC" + coil)) {
+                    confirmedCoil = coil;
+                }
             } catch (SerialIOException e) {
                 e.printStackTrace();
             }
@@ -138,7 +220,8 @@ public class Degausser implements SerialIOListener {
 
     /**
      * Sets amplitude to ramp, range 1.0 to maximumField. A value of 1.0 will actually be rounded to 1.1 which is the
-     * actual minimum amplitude of the degausser.
+     * actual minimum amplitude of the degausser. Does nothing if the degausser has already confirmed the same
+     * amplitude.
      *
      * @param amplitude amplitude to demag.
      * @throws IllegalArgumentException if the amplitude is not in the allowed range.
@@ -150,13 +233,24 @@ public class Degausser implements SerialIOListener {
                 while (amps.length() < 4) {
                     amps = "0" + amps;
                 }
-                blockingWrite("DCA" + amps);
-                Thread.sleep(1500);     // needs to wait for the degausser to process the command
+                String command = "DCA" + amps;
+                if (command.equals(confirmedAmplitude)) {
+                    lastAmplitudeLatency = 0;
+                    return;
+                }
+                confirmedAmplitude = null;
+                long start = System.currentTimeMillis();
+                boolean ok = blockingWrite(command);
+
+                // needs to wait for the degausser to process the command
+                ok &= waitForAmplitude(amps, start + AMPLITUDE_TIMEOUT);
+                lastAmplitudeLatency = (int) (System.currentTimeMillis() - start);
+                if (ok) {
+                    confirmedAmplitude = command;
+                }
 
             } catch (SerialIOException e) {
                 e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
             }
         } else {
             throw new IllegalArgumentException("amplitude = " + amplitude);
@@ -196,56 +290,107 @@ public class Degausser implements SerialIOListener {
         }
     }
 
-    protected void blockingWrite(String command) throws SerialIOException {
+    /**
+     * Polls the status of the degausser until it reports the specified amplitude. Waits until the deadline if the
+     * status can not be read.
+     *
+     * @param amps     the amplitude as in the DCA command.
+     * @param deadline the time (as given by System.currentTimeMillis()) after which to stop waiting.
+     * @return true if the degausser reported the amplitude, false if the deadline was reached or the waiting was
+     *         interrupted (the interrupted status of the current thread is then preserved).
+     */
+    private boolean waitForAmplitude(String amps, long deadline) {
+        int interval = Settings.getDegausserPollInterval();
         try {
-            serialIO.writeMessage(command + "\r");
-
-            waitingForMessage = true;
-            String answer = queue.take();
-            waitingForMessage = false;
-
-            if (!command.equals(answer)) {
-//                for (int i = 0; i < answer.length(); i++) {
-//                    System.out.println((int) answer.charAt(i));
-//                }
-//                throw new IllegalArgumentException("sent: " + command + " recieved: " + answer);
-                System.err.println("Degausser.blockingWrite() sent: " + command + " recieved: " + answer);
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                String status = getStatus(Math.max(1, Math.min(STATUS_POLL_TIMEOUT, remaining)));
+                if (status != null && status.length() >= STATUS_LENGTH
+                        && status.substring(STATUS_LENGTH - 4, STATUS_LENGTH).equals(amps)) {
+                    return true;
+                }
+                remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                Thread.sleep(Math.min(interval, remaining));
             }
-
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    protected boolean blockingWrite(String command) throws SerialIOException {
+        try {
+            return checkEcho(command, CommandChannel.get(channel.request(command + "\r", CommandChannel.oneOf(command)),
+                    pollTimeout));
+        } catch (SerialIOException e) {
+            invalidateState();
+            throw e;
         }
     }
 
+    /**
+     * Discards the answers to all commands that are still waiting for them, so that whoever waits for them will stop
+     * waiting, and forgets the state of the degausser. Used when a measurement is aborted.
+     */
+    public void abort() {
+        channel.cancelAll();
+        invalidateState();
+    }
+
+    /**
+     * Forgets the amplitude and coil that the degausser has confirmed, so that they will be set again before the next
+     * demagnetization. Must be called whenever the state of the degausser is not known.
+     */
+    protected void invalidateState() {
+        confirmedAmplitude = null;
+        confirmedCoil = '?';
+    }
+
+    /**
+     * Sends a command and reserves its echo and the reply that follows the echo. Does not wait for the replies.
+     *
+     * @param command the command to send, without the terminating '\r'.
+     * @param reply   format of the reply that the command will produce after its echo.
+     * @return the echo of the command followed by the other reply.
+     */
+    protected List<Future<String>> request(String command, CommandChannel.ReplyFormat reply)
+            throws SerialIOException {
+        return channel.requestAll(command + "\r", CommandChannel.oneOf(command), reply);
+    }
+
+    /**
+     * Checks that the degausser echoed the command that was sent.
+     *
+     * @param command the command without the terminating '\r'.
+     * @param answer  the echo received from the degausser.
+     * @return true if the echo was right, otherwise false and the state of the degausser is no more known.
+     */
+    private boolean checkEcho(String command, String answer) {
+        if (!command.equals(answer)) {
+//            throw new IllegalArgumentException("sent: " + command + " recieved: " + answer);
+            System.err.println("Degausser.blockingWrite() sent: " + command + " recieved: " + answer);
+            invalidateState();
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Performs full sequence to demagnetize Z coil with the given amplitude. Blocking method.
      *
      * @param amp amplitude to demag.
      * @return true if process was sended succesfully, otherwise false.
+     * @throws InterruptedException if the current thread was interrupted. The ramp may still be running in the
+     *                              degausser, and its state will be checked again before the next demagnetization.
      */
-    public boolean demagnetizeZ(double amp) {
+    public boolean demagnetizeZ(double amp) throws InterruptedException {
         setAmplitude(amp);
         setCoil('Z');
-        demagnetizing = true;
-        executeRampCycle();
-
-        // need to wait for DONE message or TRACK ERROR message
-        waitingForMessage = true;
-        String answer = null;
-        try {
-            answer = queue.take();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        waitingForMessage = false;
-        demagnetizing = false;
-
-        if (answer.equals("DONE")) {
-            return true;
-        } else {
-            return false;
-        }
-
+        checkInterrupted();
+        return rampCycle();
     }
 
     /**
@@ -253,29 +398,125 @@ public class Degausser implements SerialIOListener {
      *
      * @param amp amplitude to demag.
      * @return true if process was sended succesfully, otherwise false.
+     * @throws InterruptedException if the current thread was interrupted. The ramp may still be running in the
+     *                              degausser, and its state will be checked again before the next demagnetization.
      */
-    public boolean demagnetizeY(double amp) {
+    public boolean demagnetizeY(double amp) throws InterruptedException {
         setAmplitude(amp);
         setCoil('Y');
-        demagnetizing = true;
-        executeRampCycle();
+        checkInterrupted();
+        return rampCycle();
+    }
+
+    /**
+     * Throws an InterruptedException if the current thread has been interrupted. Clears the interrupted status.
+     */
+    private void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            invalidateState();
+            throw new InterruptedException("Degausser interrupted");
+        }
+    }
 
-        // need to wait for DONE message or TRACK ERROR message
-        waitingForMessage = true;
+    /**
+     * Performs Ramp up and down and waits for the degausser to report that it is finished.
+     *
+     * @return true if the degausser answered DONE, false if it answered TRACK ERROR or did not answer.
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    private boolean rampCycle() throws InterruptedException {
+        demagnetizing = true;
+        long start = System.currentTimeMillis();
         String answer = null;
         try {
-            answer = (String) queue.take();
-        } catch (InterruptedException e) {
+            // need to wait for DONE message or TRACK ERROR message after the echo
+            List<Future<String>> replies = request("DERC", RAMP_FINISHED);
+            checkEcho("DERC", CommandChannel.await(replies.get(0), pollTimeout));
+            answer = waitForRamp(replies.get(1), start + pollTimeout * 1000L);
+        } catch (SerialIOException e) {
             e.printStackTrace();
+        } finally {
+            lastRampLatency = (int) (System.currentTimeMillis() - start);
+            demagnetizing = false;
+            if (!"DONE".equals(answer)) {
+                invalidateState();      // TRACK ERROR, no answer or interrupted
+            }
         }
-        waitingForMessage = false;
-        demagnetizing = false;
+        return "DONE".equals(answer);
+    }
 
-        if (answer.equals("DONE")) {
-            return true;
-        } else {
-            return false;
+    /**
+     * Waits for a ramp cycle to finish. Between the polling intervals the ramp status is queried, and when the
+     * degausser has been seen tracking and is then back at zero, the DONE or TRACK ERROR message is waited for only a
+     * short grace period, because both of them return the ramp to zero.
+     *
+     * @param finished the DONE or TRACK ERROR message.
+     * @param deadline the time (as given by System.currentTimeMillis()) after which to stop waiting.
+     * @return "DONE" or "TRACK ERROR", or null if the deadline was reached or the message did not arrive after the
+     *         ramp returned to zero.
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    private String waitForRamp(Future<String> finished, long deadline) throws InterruptedException {
+        int interval = Math.max(1, Settings.getDegausserPollInterval());
+        boolean tracking = false;
+        try {
+            while (true) {
+                try {
+                    return finished.get(Math.min(interval, Math.max(1, deadline - System.currentTimeMillis())),
+                            TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // not yet finished
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    System.err.println("Degausser ramp cycle timed out");
+                    finished.cancel(false);
+                    return null;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                String status = getStatus(Math.max(1, Math.min(STATUS_POLL_TIMEOUT, remaining)));
+                checkInterrupted();
+                if (status != null && status.length() > 1) {
+                    if (status.charAt(1) == 'T') {
+                        tracking = true;
+                    } else if (status.charAt(1) == 'Z' && tracking) {
+                        try {
+                            return finished.get(RAMP_FINISHED_GRACE, TimeUnit.MILLISECONDS);
+                        } catch (TimeoutException e) {
+                            System.err.println("Degausser ramp returned to zero without reporting the result");
+                            break;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            finished.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } catch (CancellationException e) {
+            return null;        // aborted
         }
+        finished.cancel(false);
+        return null;
+    }
+
+    /**
+     * Returns how long the last setAmplitude took, from sending the command until the degausser reported the new
+     * amplitude. Zero if the amplitude did not need to be changed.
+     *
+     * @return the latency in milliseconds, or -1 if no amplitude has been set.
+     */
+    public int getLastAmplitudeLatency() {
+        return lastAmplitudeLatency;
+    }
+
+    /**
+     * Returns how long the last ramp cycle took, from sending the command until it was finished.
+     *
+     * @return the latency in milliseconds, or -1 if no ramp cycle has been done.
+     */
+    public int getLastRampLatency() {
+        return lastRampLatency;
     }
 
     public boolean isDemagnetizing() {
@@ -283,24 +524,38 @@ public class Degausser implements SerialIOListener {
     }
 
     /**
-     * Sends status query to degausser and returns answer. Blocking.
+     * Sends status query (DSS) to degausser and waits for the status line that follows the echo.
      *
-     * @return Z=Zero, T=Tracking, ?=Unknown
+     * @return the status line, or null if it did not arrive.
      */
-    public char getRampStatus() {
+    private String getStatus() {
+        return getStatus(pollTimeout * 1000L);
+    }
+
+    /**
+     * Sends status query (DSS) to degausser and waits for the status line that follows the echo.
+     *
+     * @param timeoutMillis how long in milliseconds to wait for each of the answers.
+     * @return the status line, or null if it did not arrive.
+     */
+    private String getStatus(long timeoutMillis) {
         try {
-            blockingWrite("DSS");
+            List<Future<String>> replies = request("DSS", STATUS_LINE);
+            checkEcho("DSS", CommandChannel.get(replies.get(0), timeoutMillis, TimeUnit.MILLISECONDS));
+            return CommandChannel.get(replies.get(1), timeoutMillis, TimeUnit.MILLISECONDS);
         } catch (SerialIOException e) {
             e.printStackTrace();
+            return null;
         }
-        waitingForMessage = true;
-        String answer = null;
-        try {
-            answer = (String) queue.poll(pollTimeout, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        waitingForMessage = false;
+    }
+
+    /**
+     * Sends status query to degausser and returns answer. Blocking.
+     *
+     * @return Z=Zero, T=Tracking, ?=Unknown
+     */
+    public char getRampStatus() {
+        String answer = getStatus();
         return answer.charAt(1);
     }
 
@@ -310,19 +565,7 @@ public class Degausser implements SerialIOListener {
      * @return 3, 5, 7 or 9
      */
     public int getRamp() {
-        try {
-            blockingWrite("DSS");
-        } catch (SerialIOException e) {
-            e.printStackTrace();
-        }
-        waitingForMessage = true;
-        String answer = null;
-        try {
-            answer = (String) queue.poll(pollTimeout, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        waitingForMessage = false;
+        String answer = getStatus();
         return (int) answer.charAt(4);
     }
 
@@ -332,19 +575,7 @@ public class Degausser implements SerialIOListener {
      * @return 1 to 9 as seconds
      */
     public int getDelay() {
-        try {
-            blockingWrite("DSS");
-        } catch (SerialIOException e) {
-            e.printStackTrace();
-        }
-        waitingForMessage = true;
-        String answer = null;
-        try {
-            answer = (String) queue.poll(pollTimeout, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        waitingForMessage = false;
+        String answer = getStatus();
         return (int) answer.charAt(7);
     }
 
@@ -354,19 +585,7 @@ public class Degausser implements SerialIOListener {
      * @return X=X Axis, Y=Y Axis, Z=Z Axis, ?=Unknown
      */
     public char getCoil() {
-        try {
-            blockingWrite("DSS");
-        } catch (SerialIOException e) {
-            e.printStackTrace();
-        }
-        waitingForMessage = true;
-        String answer = null;
-        try {
-            answer = (String) queue.poll(pollTimeout, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        waitingForMessage = false;
+        String answer = getStatus();
         return answer.charAt(10);
     }
 
@@ -376,20 +595,7 @@ public class Degausser implements SerialIOListener {
      * @return 0 to 3000
      */
     public int getAmplitude() {
-        try {
-            blockingWrite("DSS");
-        } catch (SerialIOException e) {
-            e.printStackTrace();
-        }
-        waitingForMessage = true;
-        String answer = null;
-        try {
-            answer = (String) queue.poll(pollTimeout, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        waitingForMessage = false;
-
+        String answer = getStatus();
         return Integer.parseInt(answer.substring(13, 17));
     }
 
@@ -405,21 +611,4 @@ public class Degausser implements SerialIOListener {
             return false;
         }
     }
-
-    public void serialIOEvent(SerialIOEvent event) {
-        //TODO: problem when Degausser and Magnetometer uses same port :/
-        String message = event.getCleanMessage();
-        if (message != null) {
-            if (waitingForMessage) {
-                try {
-                    queue.put(message);
-                } catch (InterruptedException e) {
-                    System.err.println("Interrupted Degausser message event");
-                } catch (NullPointerException e) {
-                    System.err.println("Null from SerialEvent in Degausser");
-                }
-            }
-            messageBuffer.add(message);
-        }
-    }
 }
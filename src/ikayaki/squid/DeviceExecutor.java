@@ -0,0 +1,411 @@
+/*
+ * DeviceExecutor.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki.squid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executes the commands sent to the devices of a Squid. Every device has its own long-lived worker thread and queue, so
+ * that the commands of one device are run one at a time in order, but the devices may work at the same time. Urgent
+ * commands (such as stopping the handler) are run before any normal commands that are waiting in the queue.
+ * <p/>
+ * The queue of every device holds at most a fixed number of normal commands. When it is full, submitting a normal
+ * command will wait until there is room. Commands that must not be queued behind other commands, such as the manual
+ * controls of the user interface, can be submitted with {@link #submitExclusive}, which rejects the command if the
+ * device is already busy.
+ * <p/>
+ * If a command is submitted from the worker thread of the same device (that is, a command sends more commands to its
+ * own device), it is run immediately in the calling thread, because it would otherwise wait for itself.
+ * <p/>
+ * All operations are thread-safe.
+ *
+ * @author agent
+ */
+public class DeviceExecutor {
+
+    /**
+     * The priorities of the commands. Commands with a higher priority are run before those with a lower one, and
+     * commands of the same priority in the order of submitting.
+     */
+    public enum Priority {
+        URGENT, NORMAL
+    }
+
+    /**
+     * The maximum number of normal commands waiting in the queue of one device.
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /**
+     * The queues of the devices, indexed by Squid.Device.ordinal().
+     */
+    private final Lane[] lanes;
+
+    /**
+     * The maximum number of normal commands waiting in the queue of one device.
+     */
+    private final int capacity;
+
+    /**
+     * Creates an executor with the default capacity and starts its worker threads.
+     *
+     * @param name the name of the executor, used for naming the worker threads.
+     */
+    public DeviceExecutor(String name) {
+        this(name, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an executor and starts its worker threads.
+     *
+     * @param name     the name of the executor, used for naming the worker threads.
+     * @param capacity the maximum number of normal commands waiting in the queue of one device.
+     * @throws IllegalArgumentException if capacity is less than 1.
+     */
+    public DeviceExecutor(String name, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity = " + capacity);
+        }
+        this.capacity = capacity;
+        Squid.Device[] devices = Squid.Device.values();
+        lanes = new Lane[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            lanes[i] = new Lane(name + " " + devices[i]);
+        }
+    }
+
+    /**
+     * Submits a command with normal priority. Will wait while the queue of the device is full.
+     *
+     * @param device the device that the command uses.
+     * @param name   a short description of the command.
+     * @param task   the command to be run.
+     * @return a Future which completes when the command has been run.
+     * @throws NullPointerException       if device or task is null.
+     * @throws RejectedExecutionException if the current thread was interrupted while waiting for room in the queue.
+     */
+    public Future<?> submit(Squid.Device device, String name, Runnable task) {
+        return submit(device, Priority.NORMAL, name, task);
+    }
+
+    /**
+     * Submits a command. Normal commands will wait while the queue of the device is full, urgent commands never wait.
+     * If the task is itself a Future (such as a FutureTask), cancelling the command will cancel also the task, so that
+     * whoever waits for the task will not wait for a command that will never be run.
+     *
+     * @param device   the device that the command uses.
+     * @param priority the priority of the command.
+     * @param name     a short description of the command.
+     * @param task     the command to be run.
+     * @return a Future which completes when the command has been run.
+     * @throws NullPointerException       if device, priority or task is null.
+     * @throws RejectedExecutionException if the current thread was interrupted while waiting for room in the queue.
+     */
+    public Future<?> submit(Squid.Device device, Priority priority, String name, Runnable task) {
+        if (priority == null || task == null) {
+            throw new NullPointerException();
+        }
+        Command<Object> command = new Command<Object>(name, priority, toCallable(task));
+        if (task instanceof Future) {
+            command.inner = (Future<?>) task;
+        }
+        return getLane(device).submit(command, false);
+    }
+
+    /**
+     * Submits a command which returns a value. Normal commands will wait while the queue of the device is full, urgent
+     * commands never wait.
+     *
+     * @param device   the device that the command uses.
+     * @param priority the priority of the command.
+     * @param name     a short description of the command.
+     * @param task     the command to be run.
+     * @return a Future which completes with the value of the command when it has been run.
+     * @throws NullPointerException       if device, priority or task is null.
+     * @throws RejectedExecutionException if the current thread was interrupted while waiting for room in the queue.
+     */
+    public <T> Future<T> submit(Squid.Device device, Priority priority, String name, Callable<T> task) {
+        if (priority == null || task == null) {
+            throw new NullPointerException();
+        }
+        return getLane(device).submit(new Command<T>(name, priority, task), false);
+    }
+
+    /**
+     * Submits a command with normal priority, but only if the device has no other commands running or waiting. Used for
+     * commands which the user gives directly, so that for example double-clicking a button will not queue the same
+     * command twice.
+     *
+     * @param device the device that the command uses.
+     * @param name   a short description of the command.
+     * @param task   the command to be run.
+     * @return a Future which completes when the command has been run.
+     * @throws NullPointerException       if device or task is null.
+     * @throws RejectedExecutionException if the device is busy.
+     */
+    public Future<?> submitExclusive(Squid.Device device, String name, Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        return getLane(device).submit(new Command<Object>(name, Priority.NORMAL, toCallable(task)), true);
+    }
+
+    /**
+     * Tells whether the device has commands running or waiting.
+     */
+    public boolean isBusy(Squid.Device device) {
+        return getLane(device).isBusy();
+    }
+
+    /**
+     * Waits until the device has run all commands that have been submitted to it. Returns immediately if called from
+     * the worker thread of the device.
+     *
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    public void join(Squid.Device device) throws InterruptedException {
+        getLane(device).join();
+    }
+
+    /**
+     * Cancels the commands of the device that are waiting in the queue and interrupts the command being run.
+     */
+    public void cancel(Squid.Device device) {
+        getLane(device).cancel();
+    }
+
+    /**
+     * Cancels the commands of all devices. See {@link #cancel(Squid.Device)}.
+     */
+    public void cancelAll() {
+        for (Lane lane : lanes) {
+            lane.cancel();
+        }
+    }
+
+    private Lane getLane(Squid.Device device) {
+        return lanes[device.ordinal()];
+    }
+
+    private static Callable<Object> toCallable(final Runnable task) {
+        return new Callable<Object>() {
+            public Object call() {
+                task.run();
+                return null;
+            }
+        };
+    }
+
+    /**
+     * The queue and worker thread of one device.
+     *
+     * @author agent
+     */
+    private class Lane implements Runnable {
+
+        /**
+         * The commands waiting to be run, ordered by priority and the order of submitting.
+         */
+        private final PriorityQueue<Command<?>> queue = new PriorityQueue<Command<?>>();
+
+        /**
+         * The number of normal commands in the queue.
+         */
+        private int normalCommands = 0;
+
+        /**
+         * The number of commands submitted so far, used for keeping the order of commands with the same priority.
+         */
+        private long sequence = 0;
+
+        /**
+         * The command being run, or null if none is.
+         */
+        private Command<?> running = null;
+
+        private final Thread worker;
+
+        public Lane(String name) {
+            worker = new Thread(this, name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        public <T> Future<T> submit(Command<T> command, boolean exclusive) {
+            if (Thread.currentThread() == worker) {
+                command.run();
+                return command;
+            }
+            synchronized (this) {
+                if (exclusive && isBusy()) {
+                    throw new RejectedExecutionException(worker.getName() + " is busy, rejected " + command);
+                }
+                if (command.priority == Priority.NORMAL) {
+                    while (normalCommands >= capacity) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Interrupted while submitting " + command);
+                        }
+                    }
+                    normalCommands++;
+                }
+                command.sequence = sequence++;
+                queue.add(command);
+                notifyAll();
+            }
+            return command;
+        }
+
+        public synchronized boolean isBusy() {
+            return running != null || !queue.isEmpty();
+        }
+
+        public synchronized void join() throws InterruptedException {
+            if (Thread.currentThread() == worker) {
+                return;
+            }
+            while (isBusy()) {
+                wait();
+            }
+        }
+
+        public void cancel() {
+            List<Command<?>> cancelled;
+            Command<?> current;
+            synchronized (this) {
+                cancelled = new ArrayList<Command<?>>(queue);
+                queue.clear();
+                normalCommands = 0;
+                current = running;
+                notifyAll();
+            }
+            for (Command<?> command : cancelled) {
+                command.cancel(false);
+            }
+            if (current != null) {
+                current.cancel(true);
+            }
+        }
+
+        public void run() {
+            while (true) {
+                Command<?> command;
+                synchronized (this) {
+                    while (queue.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // the interrupt was meant for a command which has already finished
+                        }
+                    }
+                    command = queue.poll();
+                    if (command.priority == Priority.NORMAL) {
+                        normalCommands--;
+                    }
+                    running = command;
+                    notifyAll();
+                }
+                try {
+                    command.run();
+                } finally {
+                    synchronized (this) {
+                        running = null;
+                        Thread.interrupted();       // do not let an interrupt leak to the next command
+                        notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A command in the queue of a device.
+     *
+     * @author agent
+     */
+    private static class Command<T> extends FutureTask<T> implements Comparable<Command<?>> {
+
+        private final String name;
+        private final Priority priority;
+        private long sequence;
+
+        /**
+         * The task if it is a Future, or null. Is cancelled together with this command.
+         */
+        private Future<?> inner;
+
+        public Command(String name, Priority priority, Callable<T> task) {
+            super(task);
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && inner != null) {
+                inner.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+
+        public int compareTo(Command<?> other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return sequence < other.sequence ? -1 : (sequence > other.sequence ? 1 : 0);
+        }
+
+        /**
+         * Reports the failure of the command, because the submitter does not necessarily check the Future.
+         */
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                get();
+            } catch (ExecutionException e) {
+                System.err.println(name + " failed");
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (CancellationException e) {
+                // not possible, checked above
+            }
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+}
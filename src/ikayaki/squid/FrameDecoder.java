@@ -0,0 +1,131 @@
+/*
+ * FrameDecoder.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki.squid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the bytes received from a serial port into messages. A message ends when the terminator of the port arrives,
+ * when the message grows to the maximum length, or when the device has been silent for the idle gap after sending the
+ * last byte. Ports whose devices do not terminate their messages (such as the handler) rely only on the idle gap.
+ * <p/>
+ * The decoder does not read the clock itself, but the caller gives it the time, so that it does not depend on the
+ * port. Not thread-safe; the caller must synchronize.
+ *
+ * @author agent
+ */
+public class FrameDecoder {
+
+    /**
+     * The terminator of ports whose messages are separated only by the idle gap.
+     */
+    public static final int NO_TERMINATOR = -1;
+
+    private final int terminator;
+    private final int maxLength;
+    private final long idleGapNanos;
+
+    /**
+     * The received part of a message which has not yet ended.
+     */
+    private final StringBuffer frame = new StringBuffer(64);
+
+    /**
+     * The time when the last byte of the unfinished message was received.
+     */
+    private long lastByteAt;
+
+    /**
+     * Creates a decoder for one port.
+     *
+     * @param terminator   the character that ends a message, or NO_TERMINATOR.
+     * @param maxLength    the maximum length of a message.
+     * @param idleGapNanos how long the device must be silent before an unterminated message is ended.
+     * @throws IllegalArgumentException if maxLength is less than 1.
+     */
+    public FrameDecoder(int terminator, int maxLength, long idleGapNanos) {
+        if (maxLength < 1) {
+            throw new IllegalArgumentException("maxLength = " + maxLength);
+        }
+        this.terminator = terminator;
+        this.maxLength = maxLength;
+        this.idleGapNanos = idleGapNanos;
+    }
+
+    /**
+     * Appends received bytes to the unfinished message. The terminators are included in the returned messages.
+     *
+     * @param bytes  buffer containing the received ASCII bytes.
+     * @param length number of bytes in the buffer.
+     * @param now    the time when the bytes were received, as given by System.nanoTime().
+     * @return the messages that were completed by the bytes, or an empty list if none were.
+     */
+    public List<String> decode(byte[] bytes, int length, long now) {
+        List<String> frames = new ArrayList<String>(1);
+        for (int i = 0; i < length; i++) {
+            char c = (char) (bytes[i] & 0xFF);
+            frame.append(c);
+            if (c == terminator || frame.length() >= maxLength) {
+                frames.add(frame.toString());
+                frame.setLength(0);
+            }
+        }
+        lastByteAt = now;
+        return frames;
+    }
+
+    /**
+     * Tells whether some bytes of an unfinished message have been received.
+     */
+    public boolean hasPartialFrame() {
+        return frame.length() > 0;
+    }
+
+    /**
+     * Ends the unfinished message if the device has been silent for at least the idle gap.
+     *
+     * @param now the current time, as given by System.nanoTime().
+     * @return the unfinished message, or null if there is none or the idle gap has not yet passed.
+     */
+    public String flushIfIdle(long now) {
+        if (!hasPartialFrame() || now - lastByteAt < idleGapNanos) {
+            return null;
+        }
+        return flush();
+    }
+
+    /**
+     * Ends the unfinished message at once.
+     *
+     * @return the unfinished message, or null if there is none.
+     */
+    public String flush() {
+        if (!hasPartialFrame()) {
+            return null;
+        }
+        String message = frame.toString();
+        frame.setLength(0);
+        return message;
+    }
+}
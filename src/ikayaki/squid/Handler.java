@@ -23,28 +23,25 @@
 package ikayaki.squid;
 
 import ikayaki.Settings;
-import ikayaki.util.LastExecutor;
 
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Offers an interface for controlling the sample handler.
  *
  * @author Aki Korpua, Esko Luontola
  */
-public class Handler implements SerialIOListener {
+public class Handler {
 
     /**
-     * Synchronous queue for waiting result message from handler
+     * Matches the replies from handler to the commands that were sent.
      */
-    private SynchronousQueue<String> answerQueue = new SynchronousQueue<String>();
+    private CommandChannel channel;
 
     /**
      * Executes the commands to the handler one at a time. All public interfaces should send their commands to this
-     * queue so that they would not conflict eachother.
+     * executor so that they would not conflict eachother.
      */
-    private LastExecutor workQueue = new LastExecutor(0, false);
+    private final DeviceExecutor executor;
 
     /**
      * timeout how long we wait answer from Squid-system, debugging to prevent lock-ups if communication fails.
@@ -122,11 +119,50 @@ public class Handler implements SerialIOListener {
 
     private int HANDLER_ROTATION;
 
+    /**
+     * Every Nth rotation to zero seeks home. 1 means always.
+     */
+    private int REHOME_INTERVAL;
+
+    /**
+     * Allowed difference between the rotation counter and the expected rotation, or negative if not checked.
+     */
+    private int REHOME_DRIFT_TOLERANCE;
+
+    /**
+     * Number of rotations to zero that have been done by counting steps since the home rotation was last sought.
+     */
+    private int rotationsSinceHome = 0;
+
+    /**
+     * true if a movement was stopped before it was finished, so the position and rotation of the handler are not known
+     * until home is sought again.
+     */
+    private volatile boolean homeLost = false;
+
+    /**
+     * Marks a register whose value in the controller is not known.
+     */
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+
     /**
      * Currently selected motor to send the commands to.
      */
     private int currentMotor = -1;
 
+    /**
+     * Shadow copies of the controller's registers for the selected motor. Commands that would not change them are not
+     * sent. UNKNOWN if the value in the controller is not known.
+     */
+    private int registerVelocity = UNKNOWN;
+    private int registerAcceleration = UNKNOWN;
+    private int registerDeceleration = UNKNOWN;
+
+    /**
+     * Shadow copy of the direction register: 1 for positive, -1 for negative or UNKNOWN.
+     */
+    private int registerDirection = UNKNOWN;
+
     /**
      * The position where the handler is currently, or where it is heading right now. Integer.MIN_VALUE means the left
      * limit, Integer.MAX_VALUE is the right limit.
@@ -159,18 +195,17 @@ public class Handler implements SerialIOListener {
     private long estimatedRotationStartTime = 0;
     private int estimatedRotationEnd = 0;
 
-    /**
-     * Only one at time can be waiting for answer, works like semaphore for commanding handler
-     */
-    private boolean waitingForMessage = false;
-
     /**
      * Creates a new handler interface. Opens connection to handler COM port and reads settings from the Settings
      * class.
+     *
+     * @param executor the executor of the Squid, which will run the commands of the handler.
      */
-    protected Handler() throws SerialIOException {
-        serialIO = SerialIO.openPort(new SerialParameters(Settings.getHandlerPort(), 1200, 0, 0, 8, 1, 0));
-        serialIO.addSerialIOListener(this);
+    protected Handler(DeviceExecutor executor) throws SerialIOException {
+        this.executor = executor;
+        serialIO = SerialIO.openPort(new SerialParameters(Settings.getHandlerPort(), 1200, 0, 0, 8, 1, 0,
+                Settings.getSerialFixedDelay(Settings.getHandlerPort())));
+        channel = CommandChannel.forPort(serialIO);
         updateSettings();
     }
 
@@ -203,6 +238,8 @@ public class Handler implements SerialIOListener {
         ROTATION_DECELERATION = Settings.getHandlerRotationDeceleration();
         VELOCITY = Settings.getHandlerVelocity();
         HANDLER_ROTATION = Settings.getHandlerRotation();
+        REHOME_INTERVAL = Settings.getHandlerRehomeInterval();
+        REHOME_DRIFT_TOLERANCE = Settings.getHandlerRehomeDriftTolerance();
     }
 
     /**
@@ -402,7 +439,7 @@ public class Handler implements SerialIOListener {
 
         setMotorNegative();
         setPosition(0);
-        serialIO.writeMessage("H1,");
+        write("H1,");
         waitForMessage();
         fireMovementStopped();
 
@@ -410,9 +447,11 @@ public class Handler implements SerialIOListener {
         selectRotation();
         setMotorPositive();
         setRotation(0);
-        serialIO.writeMessage("H1,");
+        write("H1,");
+        rotationsSinceHome = 0;
         waitForMessage();
         fireRotationStopped();
+        homeLost = false;
     }
 
     /**
@@ -420,7 +459,7 @@ public class Handler implements SerialIOListener {
      * finish.
      */
     public void moveToSampleLoad() {
-        workQueue.execute(new Runnable() {
+        executor.submit(Squid.Device.HANDLER, "Move to sample load", new Runnable() {
             public void run() {
                 try {
                     moveToPosition(SAMPLE_LOAD_POSITION);
@@ -435,7 +474,7 @@ public class Handler implements SerialIOListener {
      * Commands the holder to move to degauss Z position. Only starts the movement and will not wait for it to finish.
      */
     public void moveToDegausserZ() {
-        workQueue.execute(new Runnable() {
+        executor.submit(Squid.Device.HANDLER, "Move to degausser Z", new Runnable() {
             public void run() {
                 try {
                     moveToPosition(AXIAL_AF_POSITION);
@@ -451,7 +490,7 @@ public class Handler implements SerialIOListener {
      * finish.
      */
     public void moveToDegausserY() {
-        workQueue.execute(new Runnable() {
+        executor.submit(Squid.Device.HANDLER, "Move to degausser Y", new Runnable() {
             public void run() {
                 try {
                     moveToPosition(TRANSVERSE_YAF_POSITION);
@@ -467,7 +506,7 @@ public class Handler implements SerialIOListener {
      * Commands the holder to move to measure position. Only starts the movement and will not wait for it to finish.
      */
     public void moveToMeasurement() {
-        workQueue.execute(new Runnable() {
+        executor.submit(Squid.Device.HANDLER, "Move to measurement", new Runnable() {
             public void run() {
                 try {
                     moveToPosition(MEASUREMENT_POSITION);
@@ -482,7 +521,7 @@ public class Handler implements SerialIOListener {
      * Commands the holder to move to background position. Only starts the movement and will not wait for it to finish.
      */
     public void moveToBackground() {
-        workQueue.execute(new Runnable() {
+        executor.submit(Squid.Device.HANDLER, "Move to background", new Runnable() {
             public void run() {
                 try {
                     moveToPosition(BACKGROUND_POSITION);
@@ -497,7 +536,7 @@ public class Handler implements SerialIOListener {
      * Commands the holder to go to left limit. Only starts the movement and will not wait for it to finish.
      */
     public void moveToLeftLimit() {
-        workQueue.execute(new Runnable() {
+        executor.submit(Squid.Device.HANDLER, "Move to left limit", new Runnable() {
             public void run() {
                 try {
                     moveToPosition(Integer.MIN_VALUE);
@@ -512,7 +551,7 @@ public class Handler implements SerialIOListener {
      * Commands the holder to go to right limit. Only starts the movement and will not wait for it to finish.
      */
     public void moveToRightLimit() {
-        workQueue.execute(new Runnable() {
+        executor.submit(Squid.Device.HANDLER, "Move to right limit", new Runnable() {
             public void run() {
                 try {
                     moveToPosition(Integer.MAX_VALUE);
@@ -544,8 +583,8 @@ public class Handler implements SerialIOListener {
 
         } else {
 
-            // if we are at a limit, we must recalibrate the home position
-            if (getPosition() == Integer.MIN_VALUE || getPosition() == Integer.MAX_VALUE) {
+            // if we are at a limit or were stopped, we must recalibrate the home position
+            if (getPosition() == Integer.MIN_VALUE || getPosition() == Integer.MAX_VALUE || homeLost) {
                 seekHome();
             }
 
@@ -610,7 +649,7 @@ public class Handler implements SerialIOListener {
         }
 
         setPosition(getPosition() + steps);
-        serialIO.writeMessage("N" + Math.abs(steps));
+        write("N" + Math.abs(steps));
         go();
 
         waitForMessage();
@@ -628,38 +667,55 @@ public class Handler implements SerialIOListener {
         }
         performSlew();
         waitForMessage();
+        invalidateRegisters();      // hitting the limit switch may change the state of the controller
         fireMovementStopped();
     }
 
     /**
      * Rotates the handler to the specified angle. If angle is over than 360 or lower than 0, it is divided by 360 and
-     * value is remainder.
+     * value is remainder. When rotating to zero, seeks the home rotation as often as the settings say. Angles of 360 or
+     * more are used for continuing the rotation forward without seeking home, so for example rotating from 270 to 360
+     * rotates a quarter turn forward to 0 degrees and only counts the steps. Continuing to the angle where the handler
+     * already is rotates a full turn, for example from 0 to 360.
      *
      * @param rotationAngle the angle in degrees to rotate the handler to.
      */
     public void rotateTo(final int rotationAngle) {
-        workQueue.execute(new Runnable() {
+        executor.submit(Squid.Device.HANDLER, "Rotate to " + rotationAngle, new Runnable() {
             public void run() {
                 int angle = rotationAngle % 360;
+                boolean continuing = rotationAngle >= 360;
                 int steps = (int) (((double) angle) / 360.0 * HANDLER_ROTATION);
 
                 try {
                     selectRotation();
                     setMotorPositive();
 
-                    // re-seek home always rotating to zero, otherwise use the counter
-                    if (angle == 0) {
+                    // re-seek home when rotating to zero if necessary, otherwise use the counter
+                    if (angle == 0 && !continuing && needsRehome()) {
                         setRotation(0);
-                        serialIO.writeMessage("H1,");
+                        write("H1,");
+                        rotationsSinceHome = 0;
                     } else {
                         int relativeSteps = steps - currentRotation;
                         while (relativeSteps < 0) {
                             relativeSteps += HANDLER_ROTATION;
                         }
                         relativeSteps = relativeSteps % HANDLER_ROTATION;
+                        if (relativeSteps == 0) {
+                            if (!continuing) {
+                                fireRotationStopped();      // already there
+                                return;
+                            }
+                            relativeSteps = HANDLER_ROTATION;
+                        }
 
+                        // only the rotations that are made count towards the next re-homing
+                        if (angle == 0) {
+                            rotationsSinceHome++;
+                        }
                         setRotation(currentRotation + relativeSteps);
-                        serialIO.writeMessage("N" + relativeSteps);
+                        write("N" + relativeSteps);
                         go();
                     }
                     waitForMessage();
@@ -672,6 +728,32 @@ public class Handler implements SerialIOListener {
         });
     }
 
+    /**
+     * Decides whether rotating to zero should seek home, or whether counting steps is accurate enough. Home is sought
+     * on every REHOME_INTERVAL'th rotation to zero, and when the rotation counter of the handler has drifted from the
+     * expected rotation. The rotation motor must be selected.
+     *
+     * @return true if home should be sought.
+     */
+    private boolean needsRehome() throws SerialIOException {
+        if (rotationsSinceHome + 1 >= REHOME_INTERVAL || homeLost) {
+            return true;
+        }
+        if (REHOME_DRIFT_TOLERANCE >= 0) {
+            String answer = verify('P');
+            try {
+                int counter = Integer.parseInt(answer.replaceAll("[^0-9-]", ""));
+                if (Math.abs(counter - currentRotation) > REHOME_DRIFT_TOLERANCE) {
+                    System.err.println("Rotation counter has drifted: counter=" + counter + " expected=" + currentRotation);
+                    return true;
+                }
+            } catch (RuntimeException e) {
+                return true;    // could not read the counter, so we do not know where we are
+            }
+        }
+        return false;
+    }
+
     /**
      * Waits that all commands sent to the Handler have been executed.
      *
@@ -679,14 +761,63 @@ public class Handler implements SerialIOListener {
      *                              current thread is cleared when this exception is thrown.
      */
     public void join() throws InterruptedException {
-        workQueue.join();
+        executor.join(Squid.Device.HANDLER);
+    }
+
+    /**
+     * Stops the handler immediately. The commands waiting in the queue are discarded, the command being run is
+     * released from waiting for the handler, and the motor is told to stop with an urgent command, which will be sent
+     * before any commands queued after it. Because the handler may have stopped anywhere, home will be sought before
+     * the next movement, and before the next rotation to zero.
+     * <p/>
+     * homeLost is set before the running command is interrupted, so that the command will see it when its waiting is
+     * interrupted and will fail instead of assuming that the handler reached its target.
+     */
+    public void abort() {
+        homeLost = true;
+        channel.cancelAll();
+        executor.cancel(Squid.Device.HANDLER);
+        executor.submit(Squid.Device.HANDLER, DeviceExecutor.Priority.URGENT, "Stop", new Runnable() {
+            public void run() {
+                try {
+                    stopExecution();
+                } catch (SerialIOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
     }
 
     /**
      * Sends message to handler go online (@0).
      */
     protected void setOnline() throws SerialIOException {
-        serialIO.writeMessage("@0,");
+        invalidateRegisters();
+        write("@0,");
+    }
+
+    /**
+     * Forgets the shadow copies of the controller's registers, so that the next commands will set them again. Must be
+     * called whenever the state of the controller may have changed without us knowing it.
+     */
+    protected void invalidateRegisters() {
+        currentMotor = -1;
+        registerVelocity = UNKNOWN;
+        registerAcceleration = UNKNOWN;
+        registerDeceleration = UNKNOWN;
+        registerDirection = UNKNOWN;
+    }
+
+    /**
+     * Writes a message to the handler. If the writing fails, the state of the controller is unknown.
+     */
+    private void write(String message) throws SerialIOException {
+        try {
+            serialIO.writeMessage(message);
+        } catch (SerialIOException e) {
+            invalidateRegisters();
+            throw e;
+        }
     }
 
     /**
@@ -697,8 +828,9 @@ public class Handler implements SerialIOListener {
         if (currentMotor == 0) {
             return;
         }
+        invalidateRegisters();
+        write("O1,0,");
         currentMotor = 0;
-        serialIO.writeMessage("O1,0,");
         setVelocity(VELOCITY);
         setAcceleration(ACCELERATION);
         setDeceleration(DECELERATION);
@@ -712,8 +844,9 @@ public class Handler implements SerialIOListener {
         if (currentMotor == 1) {
             return;
         }
+        invalidateRegisters();
+        write("O1,1,");
         currentMotor = 1;
-        serialIO.writeMessage("O1,1,");
         setVelocity(ROTATION_VELOCITY);
         setAcceleration(ROTATION_ACCELERATION);
         setDeceleration(ROTATION_DECELERATION);
@@ -729,7 +862,11 @@ public class Handler implements SerialIOListener {
         if (acceleration < 0 || acceleration > 127) {
             throw new IllegalArgumentException("acceleration = " + acceleration);
         }
-        serialIO.writeMessage("A" + acceleration + ",");
+        if (registerAcceleration == acceleration) {
+            return;
+        }
+        write("A" + acceleration + ",");
+        registerAcceleration = acceleration;
     }
 
     /**
@@ -742,7 +879,11 @@ public class Handler implements SerialIOListener {
         if (deceleration < 0 || deceleration > 127) {
             throw new IllegalArgumentException("deceleration = " + deceleration);
         }
-        serialIO.writeMessage("D" + deceleration + ",");
+        if (registerDeceleration == deceleration) {
+            return;
+        }
+        write("D" + deceleration + ",");
+        registerDeceleration = deceleration;
     }
 
     /**
@@ -755,7 +896,10 @@ public class Handler implements SerialIOListener {
         if (velocity < 50 || velocity > 8500) {
             throw new IllegalArgumentException("velocity = " + velocity);
         }
-        serialIO.writeMessage("M" + velocity + ",");
+        if (registerVelocity != velocity) {
+            write("M" + velocity + ",");
+            registerVelocity = velocity;
+        }
         if (currentVelocity < 0) {
             currentVelocity = -velocity;
         } else {
@@ -768,7 +912,8 @@ public class Handler implements SerialIOListener {
      * will ramp down and then stop. Use this command to stop the motor after issuing a slew command. (Q).
      */
     protected void stopExecution() throws SerialIOException {
-        serialIO.writeMessage("Q,");
+        invalidateRegisters();
+        write("Q,");
     }
 
     /**
@@ -777,14 +922,17 @@ public class Handler implements SerialIOListener {
      */
     protected void performSlew() throws SerialIOException {
         selectMovement();
-        serialIO.writeMessage("S,");
+        write("S,");
     }
 
     /**
      * Set the motor direction of movement to positive. (+).
      */
     protected void setMotorPositive() throws SerialIOException {
-        serialIO.writeMessage("+");
+        if (registerDirection != 1) {
+            write("+");
+            registerDirection = 1;
+        }
         currentVelocity = Math.abs(currentVelocity);
     }
 
@@ -792,7 +940,10 @@ public class Handler implements SerialIOListener {
      * Set the motor direction of movement to negative. (-).
      */
     protected void setMotorNegative() throws SerialIOException {
-        serialIO.writeMessage("-");
+        if (registerDirection != -1) {
+            write("-");
+            registerDirection = -1;
+        }
         currentVelocity = -Math.abs(currentVelocity);
     }
 
@@ -800,7 +951,7 @@ public class Handler implements SerialIOListener {
      * Send handler on move (G).
      */
     protected void go() throws SerialIOException {
-        serialIO.writeMessage("G,");
+        write("G,");
     }
 
     /**
@@ -813,17 +964,13 @@ public class Handler implements SerialIOListener {
      */
     protected void waitForMessage() throws SerialIOException {
         // blocks all messages for handler
-        serialIO.writeMessage("F%,");
-
-        // just polls for messages, we might get old messages waiting there? Use take message.
-        //this.serialIO.writeMessage("%,");
-        waitingForMessage = true;
-        try {
-            answerQueue.take();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        String answer = CommandChannel.get(channel.request("F%,", CommandChannel.ANY), 0);
+        if (answer == null || isErrorNotice(answer)) {
+            invalidateRegisters();
+        }
+        if (answer == null && homeLost) {
+            throw new SerialIOException("Handler was aborted");     // do not continue the interrupted movement
         }
-        waitingForMessage = false;
     }
 
     /**
@@ -838,16 +985,10 @@ public class Handler implements SerialIOListener {
      * @return registery as a string
      */
     protected String verify(char registry) throws SerialIOException {
-        serialIO.writeMessage("V" + registry + ",");
-
-        waitingForMessage = true;
-        String answer = null;
-        try {
-            answer = (String) answerQueue.take();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        String answer = CommandChannel.get(channel.request("V" + registry + ",", CommandChannel.ANY), POLL_TIMEOUT);
+        if (answer == null) {
+            invalidateRegisters();
         }
-        waitingForMessage = false;
         return answer;
     }
 
@@ -860,36 +1001,30 @@ public class Handler implements SerialIOListener {
      *         wait notice, a previousW command is complete <br/>7 Hard limit stop, the move was stopped by the hard
      *         limit <br/>8 End of program notice, internal program has completed <br/>G Motor is indexing and no other
      *         notice pending
+     * @throws SerialIOException if the handler did not answer.
      */
     protected char takeMessage() throws SerialIOException {
-        serialIO.writeMessage("%,");
-
-        waitingForMessage = true;
-        String answer = null;
-        try {
-            answer = (String) answerQueue.poll(POLL_TIMEOUT, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        String answer = CommandChannel.get(channel.request("%,", CommandChannel.ANY), POLL_TIMEOUT);
+        if (answer == null || isErrorNotice(answer)) {
+            invalidateRegisters();
+        }
+        if (answer == null || answer.length() == 0) {
+            throw new SerialIOException("No answer from the handler");
         }
-        waitingForMessage = false;
         return answer.charAt(0);
     }
 
-    public void serialIOEvent(SerialIOEvent event) {
-        String message = event.getCleanMessage();
-        if (!waitingForMessage) {
-            System.err.println("Recieved a message that nobody waited for: " + message);
-            return;
-        }
-
-        try {
-            answerQueue.put(message);
-        } catch (InterruptedException e) {
-            System.err.println("Interrupted Handler message event");
-            e.printStackTrace();
-        } catch (NullPointerException e) {
-            System.err.println("Null from SerialEvent in Handler");
-            e.printStackTrace();
+    /**
+     * Tells whether a service request from the handler reports an error or a hard limit stop, after which the state of
+     * the controller is not known.
+     *
+     * @param answer the answer to a service request (see takeMessage).
+     */
+    private static boolean isErrorNotice(String answer) {
+        if (answer.length() == 0) {
+            return true;
         }
+        char c = answer.charAt(0);
+        return c == '1' || c == '2' || c == '3' || c == '4' || c == '7';
     }
 }
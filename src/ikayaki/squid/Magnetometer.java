@@ -23,9 +23,11 @@
 package ikayaki.squid;
 
 import ikayaki.Settings;
+import ikayaki.util.RunningStatistics;
 
-import java.util.Stack;
-import java.util.concurrent.SynchronousQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -33,17 +35,13 @@ import java.util.concurrent.TimeUnit;
  *
  * @author Aki Korpua
  */
-public class Magnetometer implements SerialIOListener {
+public class Magnetometer {
 
     /**
-     * Buffer for incoming messages, readed when needed.
+     * Routes the replies from magnetometer to the queries that were sent. Shared with the other devices on the same
+     * port.
      */
-    private Stack<String> messageBuffer;
-
-    /**
-     * Synchronous queue for waiting result message from magnetometer
-     */
-    private SynchronousQueue<String> queue;
+    private CommandChannel channel;
     private int pollTimeout = 60;
 
     /**
@@ -51,11 +49,10 @@ public class Magnetometer implements SerialIOListener {
      */
     protected SerialIO serialIO;
 
-    private boolean waitingForMessage = false;
-
     private boolean measuring = false;
 
 
+
     /**
      * Creates a new magnetometer interface. Opens connection to Magnetometer COM port (if its not open already) and
      * reads settings from the Setting class.
@@ -63,10 +60,9 @@ public class Magnetometer implements SerialIOListener {
      * @throws SerialIOException
      */
     public Magnetometer() throws SerialIOException {
-        this.serialIO = SerialIO.openPort(new SerialParameters(Settings.getMagnetometerPort(), 1200, 0, 0, 8, 1, 0));
-        serialIO.addSerialIOListener(this);
-        messageBuffer = new Stack<String>();
-        queue = new SynchronousQueue<String>();
+        this.serialIO = SerialIO.openPort(new SerialParameters(Settings.getMagnetometerPort(), 1200, 0, 0, 8, 1, 0,
+                Settings.getSerialFixedDelay(Settings.getMagnetometerPort()), '\r'));
+        channel = CommandChannel.forPort(serialIO);
         try {
             //Original sets range and filter to 1x and disable fast-slew, TODO: check if right, do we need status confirm?
             serialIO.writeMessage("XCR1\r");
@@ -199,35 +195,43 @@ public class Magnetometer implements SerialIOListener {
      * @return Returns data wanted, see command and datavalue
      */
     protected String getData(char axis, char command, String datavalues) {
+        Future<String> answer = requestData(axis, command, datavalues);
+        if (answer == null) {
+            return null;
+        }
+        return CommandChannel.get(answer, pollTimeout);
+    }
+
+    /**
+     * Sends a query like {@link #getData(char, char, String)} but does not wait for the answer. Many queries can be
+     * waiting for their answers at the same time.
+     *
+     * @param axis       'X', 'Y' or 'Z'. All characters are in upper case.
+     * @param command    see getData.
+     * @param datavalues see getData.
+     * @return the answer that will arrive later, or null if the query could not be sent.
+     */
+    protected Future<String> requestData(char axis, char command, String datavalues) {
         if (axis != 'X' && axis != 'Y' && axis != 'Z') {
             throw new IllegalArgumentException("axis = " + axis);
         }
+        String message;
+        CommandChannel.ReplyFormat format;
         if (command == 'D' || command == 'C') {
-            try {
-                this.serialIO.writeMessage(axis + "S" + command + "\r");
-            } catch (SerialIOException ex) {
-                System.err.println(ex);
-                return null;
-            }
+            message = axis + "S" + command + "\r";
+            format = CommandChannel.NUMBER;
         } else if (command == 'S') {
-            try {
-                this.serialIO.writeMessage(axis + "S" + command + datavalues + "\r");
-            } catch (SerialIOException ex) {
-                System.err.println(ex);
-                return null;
-            }
+            message = axis + "S" + command + datavalues + "\r";
+            format = CommandChannel.startsWith(datavalues, datavalues.length() + 1);
         } else {
             throw new IllegalArgumentException("command = " + command);
         }
-        waitingForMessage = true;
-        String answer = null;
         try {
-            answer = (String) queue.poll(pollTimeout, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            return channel.request(message, format);
+        } catch (SerialIOException ex) {
+            System.err.println(ex);
+            return null;
         }
-        waitingForMessage = false;
-        return answer;
     }
 
     /**
@@ -250,45 +254,233 @@ public class Magnetometer implements SerialIOListener {
     }
 
     /**
-     * Latches axes, reads counters and analog. Calculates data from them and returns them.
+     * Discards the answers to all queries that are still waiting for them, so that whoever waits for them will stop
+     * waiting. Used when a measurement is aborted.
+     */
+    public void abort() {
+        channel.cancelAll();
+        measuring = false;
+    }
+
+    /**
+     * Latches axes, reads counters and analog. Calculates data from them and returns them. The analog values are read
+     * as many times as the settings say, and their mean is used.
      *
      * @return Returns 3 double values in following order: (x,y,z)
+     * @throws InterruptedException  if the current thread was interrupted while reading. The answers that have not yet
+     *                               arrived will be discarded.
+     * @throws IllegalStateException if the magnetometer did not answer.
+     * @see #read()
+     */
+    public double[] readData() throws InterruptedException {
+        return read().getValues();
+    }
+
+    /**
+     * Latches axes, reads counters and analog. Calculates the values and their standard errors from them. The analog
+     * values are read as many times as the settings say, and their mean is used.
+     *
+     * @return the values and their standard errors.
+     * @throws InterruptedException  if the current thread was interrupted while reading. The answers that have not yet
+     *                               arrived will be discarded.
+     * @throws IllegalStateException if the magnetometer did not answer. The answers that have not yet arrived will be
+     *                               discarded.
      */
-    public double[] readData() {
+    public Reading read() throws InterruptedException {
 
         // wait for magnetometer to settle down
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        int settleTime = settle();
 
         measuring = true;
-        latchCounter('A');
+        int samples = Math.max(1, Settings.getMagnetometerSamples());
+        double counterX, counterY, counterZ;
+        RunningStatistics analogX = new RunningStatistics();
+        RunningStatistics analogY = new RunningStatistics();
+        RunningStatistics analogZ = new RunningStatistics();
+
+        List<Future<String>> queries = new ArrayList<Future<String>>(3 + 3 * samples);
+        try {
+            if (Settings.getMagnetometerPipelined()) {
+
+                // send all queries at once, the magnetometer answers them in the same order
+                latchCounter('A');
+                queries.add(requestData('X', 'C', ""));
+                queries.add(requestData('Y', 'C', ""));
+                queries.add(requestData('Z', 'C', ""));
+                for (int i = 0; i < samples; i++) {
+                    latchAnalog('A');
+                    queries.add(requestData('X', 'D', ""));
+                    queries.add(requestData('Y', 'D', ""));
+                    queries.add(requestData('Z', 'D', ""));
+                }
 
-        //read all latched counter values
-        double counterX = Double.parseDouble(getData('X', 'C', ""));
-        double counterY = Double.parseDouble(getData('Y', 'C', ""));
-        double counterZ = Double.parseDouble(getData('Z', 'C', ""));
+                counterX = parseAnswer(queries.get(0));
+                counterY = parseAnswer(queries.get(1));
+                counterZ = parseAnswer(queries.get(2));
+                for (int i = 3; i < queries.size(); i += 3) {
+                    analogX.add(parseAnswer(queries.get(i)));
+                    analogY.add(parseAnswer(queries.get(i + 1)));
+                    analogZ.add(parseAnswer(queries.get(i + 2)));
+                }
 
-        latchAnalog('A');
+            } else {
+                latchCounter('A');
 
-        //Maybe need to read many times and take mean value.
-        //But we do it only ones (default for old software)
-        //read all latched analog values
-        double analogX = Double.parseDouble(getData('X', 'D', ""));
-        double analogY = Double.parseDouble(getData('Y', 'D', ""));
-        double analogZ = Double.parseDouble(getData('Z', 'D', ""));
+                //read all latched counter values
+                counterX = parseAnswer(requestData('X', 'C', ""));
+                counterY = parseAnswer(requestData('Y', 'C', ""));
+                counterZ = parseAnswer(requestData('Z', 'C', ""));
+
+                //read all latched analog values, many times if so configured (only once is default for old software)
+                for (int i = 0; i < samples; i++) {
+                    latchAnalog('A');
+                    analogX.add(parseAnswer(requestData('X', 'D', "")));
+                    analogY.add(parseAnswer(requestData('Y', 'D', "")));
+                    analogZ.add(parseAnswer(requestData('Z', 'D', "")));
+                }
+            }
+        } finally {
+            measuring = false;
+
+            // discard the answers of a failed reading, so that they will not be taken by the later readings
+            for (Future<String> query : queries) {
+                if (query != null) {
+                    query.cancel(false);        // does nothing if the answer has already arrived
+                }
+            }
+        }
 
         double[] result = new double[3];
+        double calibrationX = Settings.getMagnetometerXAxisCalibration();
+        double calibrationY = Settings.getMagnetometerYAxisCalibration();
+        double calibrationZ = Settings.getMagnetometerZAxisCalibration();
 
         //when to use flux counting and when not? TODO
-        result[0] = (counterX + analogX) * Settings.getMagnetometerXAxisCalibration();
-        result[1] = (counterY + analogY) * Settings.getMagnetometerYAxisCalibration();
-        result[2] = (counterZ + analogZ) * Settings.getMagnetometerZAxisCalibration();
+        result[0] = (counterX + analogX.getMean()) * calibrationX;
+        result[1] = (counterY + analogY.getMean()) * calibrationY;
+        result[2] = (counterZ + analogZ.getMean()) * calibrationZ;
+
+        double[] standardErrors = new double[]{
+                analogX.getStandardError() * Math.abs(calibrationX),
+                analogY.getStandardError() * Math.abs(calibrationY),
+                analogZ.getStandardError() * Math.abs(calibrationZ)
+        };
+        return new Reading(result, standardErrors, settleTime);
+    }
 
-        measuring = false;
-        return result;
+    /**
+     * Waits for the answer to a query and parses it as a number.
+     *
+     * @param answer the answer from requestData, or null if the query could not be sent.
+     * @return the value of the answer.
+     * @throws InterruptedException  if the current thread was interrupted while waiting.
+     * @throws IllegalStateException if the answer did not arrive or was not a number.
+     */
+    private double parseAnswer(Future<String> answer) throws InterruptedException {
+        if (answer == null) {
+            throw new IllegalStateException("Unable to send a query to the magnetometer");
+        }
+        String s = CommandChannel.await(answer, pollTimeout);
+        if (s == null) {
+            throw new IllegalStateException("No answer from the magnetometer");
+        }
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Invalid answer from the magnetometer: " + s, e);
+        }
+    }
+
+    /**
+     * Waits for the magnetometer to settle down. In adaptive mode the analog values are polled until two successive
+     * values of every axis are within the tolerance, but the waiting will not last longer than the maximum delay, also
+     * when the magnetometer is slow to answer the polls. In the normal mode the maximum delay is always waited.
+     *
+     * @return how long in milliseconds the magnetometer was waited to settle.
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    private int settle() throws InterruptedException {
+        int maxDelay = Settings.getMagnetometerSettleMaxDelay();
+        long start = System.currentTimeMillis();
+        long deadline = start + maxDelay;
+        if (!Settings.getMagnetometerSettleAdaptive()) {
+            Thread.sleep(maxDelay);
+            return maxDelay;
+        }
+        int interval = Settings.getMagnetometerSettleInterval();
+        double tolerance = Settings.getMagnetometerSettleTolerance();
+        double[] previous = null;
+        while (true) {
+            double[] current = readAnalog(deadline);
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Magnetometer settling interrupted");
+            }
+            if (current == null) {
+                previous = null;
+            } else if (previous != null
+                    && Math.abs(current[0] - previous[0]) <= tolerance
+                    && Math.abs(current[1] - previous[1]) <= tolerance
+                    && Math.abs(current[2] - previous[2]) <= tolerance) {
+                break;
+            } else {
+                previous = current;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            Thread.sleep(Math.min(interval, remaining));
+        }
+        return (int) (System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Latches and reads the analog values of all axes. The answers that have not arrived by the deadline are
+     * discarded.
+     *
+     * @param deadline the time (as given by System.currentTimeMillis()) after which to stop waiting.
+     * @return the analog values in order (x,y,z), or null if they could not be read in time.
+     */
+    private double[] readAnalog(long deadline) {
+        latchAnalog('A');
+        List<Future<String>> answers = new ArrayList<Future<String>>(3);
+        answers.add(requestData('X', 'D', ""));
+        answers.add(requestData('Y', 'D', ""));
+        answers.add(requestData('Z', 'D', ""));
+        try {
+            double[] values = new double[3];
+            for (int i = 0; i < values.length; i++) {
+                if (answers.get(i) == null) {
+                    return null;
+                }
+                String answer = getBefore(answers.get(i), deadline);
+                if (answer == null) {
+                    return null;
+                }
+                values[i] = Double.parseDouble(answer);
+            }
+            return values;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            for (Future<String> answer : answers) {
+                if (answer != null) {
+                    answer.cancel(false);       // does nothing if the answer has already arrived
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for an answer until the deadline.
+     *
+     * @param answer   the answer to wait for.
+     * @param deadline the time (as given by System.currentTimeMillis()) after which to stop waiting.
+     * @return the answer, or null if it did not arrive in time.
+     */
+    private static String getBefore(Future<String> answer, long deadline) {
+        long remaining = Math.max(1, deadline - System.currentTimeMillis());
+        return CommandChannel.get(answer, remaining, TimeUnit.MILLISECONDS);
     }
 
     public boolean isMeasuring() {
@@ -390,20 +582,47 @@ public class Magnetometer implements SerialIOListener {
         return false;
     }
 
-    public void serialIOEvent(SerialIOEvent event) {
-        //TODO: problem when Degausser and Magnetometer uses same port :/
-        String message = event.getCleanMessage();
-        if (message != null) {
-            if (waitingForMessage) {
-                try {
-                    queue.put(message);
-                } catch (InterruptedException e) {
-                    System.err.println("Interrupted Magnetometer message event");
-                } catch (NullPointerException e) {
-                    System.err.println("Null from SerialEvent in Magnetometer");
-                }
-            }
-            messageBuffer.add(message);
+    /**
+     * The result of one reading of the magnetometer.
+     *
+     * @author agent
+     */
+    public static class Reading {
+
+        private final double[] values;
+        private final double[] standardErrors;
+        private final int settleTime;
+
+        private Reading(double[] values, double[] standardErrors, int settleTime) {
+            this.values = values;
+            this.standardErrors = standardErrors;
+            this.settleTime = settleTime;
+        }
+
+        /**
+         * Returns the measured values in order (x,y,z).
+         */
+        public double[] getValues() {
+            return values.clone();
+        }
+
+        /**
+         * Returns the standard errors of the mean of the values, calculated from the analog samples. Useful only if
+         * more than one sample is read.
+         *
+         * @return the standard errors in order (x,y,z), or NaNs if only one sample was read.
+         */
+        public double[] getStandardErrors() {
+            return standardErrors.clone();
+        }
+
+        /**
+         * Returns how long the magnetometer was waited to settle before this reading.
+         *
+         * @return the settle time in milliseconds.
+         */
+        public int getSettleTime() {
+            return settleTime;
         }
     }
 }
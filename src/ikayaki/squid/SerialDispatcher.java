@@ -0,0 +1,143 @@
+/*
+ * SerialDispatcher.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki.squid;
+
+/**
+ * Delivers the SerialIOEvents of one serial port in their own thread, so that a busy listener will not delay the
+ * reading of the port and a busy event dispatch thread will not delay the replies of the devices.
+ * <p/>
+ * The received events are kept in a bounded ring buffer. If the listeners can not keep up with the port, the thread
+ * that reads the port will block until there is room in the buffer.
+ *
+ * @author agent
+ */
+class SerialDispatcher implements Runnable {
+
+    /**
+     * Maximum number of undelivered events.
+     */
+    private static final int CAPACITY = 256;
+
+    /**
+     * The undelivered events. The oldest event is at index head and there are count events after it.
+     */
+    private final SerialIOEvent[] ring = new SerialIOEvent[CAPACITY];
+    private int head = 0;
+    private int count = 0;
+
+    /**
+     * The port whose events are dispatched.
+     */
+    private final SerialIO port;
+
+    /**
+     * The thread that delivers the events, or null if the dispatcher has been stopped.
+     */
+    private Thread thread;
+
+    /**
+     * Creates and starts a dispatcher for the specified port.
+     *
+     * @param port the port whose events will be dispatched.
+     */
+    public SerialDispatcher(SerialIO port) {
+        this.port = port;
+        thread = new Thread(this, "SerialIO dispatcher " + port.getPortName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds an event to the end of the buffer. Waits if the buffer is full. Events that are added after the dispatcher
+     * has been stopped are discarded.
+     *
+     * @param event the event to be delivered.
+     */
+    public synchronized void put(SerialIOEvent event) {
+        while (count == CAPACITY && thread != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (thread == null) {
+            return;
+        }
+        ring[(head + count) % CAPACITY] = event;
+        count++;
+        notifyAll();
+    }
+
+    /**
+     * Removes the oldest event from the buffer. Waits if the buffer is empty.
+     *
+     * @return the oldest event, or null if the dispatcher has been stopped.
+     */
+    private synchronized SerialIOEvent take() {
+        while (count == 0 && thread != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // check whether we have been stopped
+            }
+        }
+        if (thread == null) {
+            return null;
+        }
+        SerialIOEvent event = ring[head];
+        ring[head] = null;
+        head = (head + 1) % CAPACITY;
+        count--;
+        notifyAll();
+        return event;
+    }
+
+    /**
+     * Stops the dispatcher thread. The undelivered events are discarded.
+     */
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Delivers the events until the dispatcher is stopped.
+     */
+    public void run() {
+        SerialIOEvent event;
+        while ((event = take()) != null) {
+            for (SerialIOListener l : port.getSerialIOListeners()) {
+                try {
+                    l.serialIOEvent(event);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+}
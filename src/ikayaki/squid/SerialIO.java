@@ -25,13 +25,14 @@ package ikayaki.squid;
 import ikayaki.Ikayaki;
 
 import javax.comm.*;
-import javax.swing.*;
 import javax.swing.event.EventListenerList;
 import java.io.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TooManyListenersException;
 import java.util.Vector;
 
@@ -49,6 +50,23 @@ message from serial port is received.
     private static final boolean DEBUG = false; // Writes log-file
     private static final DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS");
 
+    /**
+     * Maximum length of an unterminated frame. If a device sends more than this without a terminator, the data is
+     * passed on as it is, so that the frame buffer would not grow without limit.
+     */
+    private static final int MAX_FRAME_LENGTH = 1024;
+
+    /**
+     * Number of character times that the device must be silent before an unterminated frame is passed on.
+     */
+    private static final int IDLE_GAP_CHARACTERS = 4;
+
+    /**
+     * Passes on the unterminated frames of all ports after their idle gap, so that the event threads of the ports do
+     * not need to wait for it.
+     */
+    private static final Timer idleFlushTimer = new Timer("SerialIO idle flush", true);
+
     /**
      * All opened serial ports
      */
@@ -59,6 +77,11 @@ message from serial port is received.
      */
     private EventListenerList listenerList = new EventListenerList();
 
+    /**
+     * Delivers the received messages to the listeners in its own thread.
+     */
+    private final SerialDispatcher dispatcher;
+
     /**
      * This serial port
      */
@@ -79,6 +102,11 @@ message from serial port is received.
      */
     private String portName;
 
+    /**
+     * Schedules the outgoing messages so that the device will not be flooded.
+     */
+    private WritePacer pacer;
+
     /**
      * Logwriter buffer
      */
@@ -89,6 +117,28 @@ message from serial port is received.
      */
     private boolean logWriterTriedCreate = false;
 
+    /**
+     * Reusable buffer for reading all available bytes from the inputstream at once.
+     */
+    private final byte[] readBuffer = new byte[256];
+
+    /**
+     * Splits the received bytes into frames. Holds the received part of a frame whose end has not yet arrived, so it
+     * is carried over between DATA_AVAILABLE events.
+     */
+    private final FrameDecoder decoder;
+
+    /**
+     * How long in milliseconds the device must be silent before an unterminated frame is passed on, or -1 if the port
+     * has a frame terminator and its frames are never passed on unterminated.
+     */
+    private final long idleGapMillis;
+
+    /**
+     * true if an idle flush has been scheduled and has not yet run. Guarded by the lock of decoder.
+     */
+    private boolean idleFlushScheduled = false;
+
     /**
      * Logwriter event type
      */
@@ -106,6 +156,14 @@ message from serial port is received.
         CommPortIdentifier portId;
         SerialPort sPort;
 
+        long idleGapNanos = IDLE_GAP_CHARACTERS * parameters.getCharacterNanos();
+        this.decoder = new FrameDecoder(parameters.getFrameTerminator(), MAX_FRAME_LENGTH, idleGapNanos);
+        if (parameters.getFrameTerminator() == FrameDecoder.NO_TERMINATOR) {
+            this.idleGapMillis = Math.max(1, (idleGapNanos + 999999) / 1000000);
+        } else {
+            this.idleGapMillis = -1;
+        }
+
         try {
             portId = CommPortIdentifier.getPortIdentifier(parameters.getPortName());
         } catch (NoSuchPortException e) {
@@ -151,10 +209,19 @@ message from serial port is received.
             throw new SerialIOException("Error opening i/o streams");
         }
 
+        this.sPort = sPort;
+        this.portName = sPort.getName();
+        this.pacer = new WritePacer(parameters);
+
+        // the dispatcher must exist before the first event can arrive
+        this.dispatcher = new SerialDispatcher(this);
+
         // add this object to be listener for the com port
         try {
             sPort.addEventListener(this);
         } catch (TooManyListenersException ex) {
+            dispatcher.stop();
+            sPort.close();
             throw new SerialIOException("Too many listeners");
         }
 
@@ -166,16 +233,23 @@ message from serial port is received.
         try {
             sPort.enableReceiveTimeout(30);
         } catch (UnsupportedCommOperationException e) {
+            dispatcher.stop();
+            sPort.close();
             throw new SerialIOException("Unsupported operation");
         }
 
-        this.sPort = sPort;
-        this.portName = sPort.getName();
-
         return;
     }
 
-    public static SerialIO openPort(SerialParameters parameters) throws SerialIOException {
+    /**
+     * Returns the port with the specified parameters, opening it if it is not yet open. Devices that are on the same
+     * port share the same SerialIO. Synchronized, because the devices are initialized in parallel.
+     *
+     * @param parameters parameters for the serial port being opened.
+     * @return the opened port.
+     * @throws SerialIOException if the port can not be opened.
+     */
+    public static synchronized SerialIO openPort(SerialParameters parameters) throws SerialIOException {
         //System.out.println("Let's try to open port: " + parameters.getPortName());  //DEBUG
 
         SerialIO newPort = null;
@@ -212,17 +286,15 @@ message from serial port is received.
         }
 
         // send a message to outputstream
-        try {
+        synchronized (pacer) {
             try {
-                Thread.sleep(50); // Let's wait a bit so we won't flood the system wtih too many messages
-                // 50 msecs seems to work fine with baudrate of 1200..
-            } catch (InterruptedException ex) {
+                pacer.pace(asciiMsg.length); // Let's wait a bit so we won't flood the system wtih too many messages
+                debug(LogEvent.SEND, message);
+                os.write(asciiMsg);
+                os.flush(); // flush the buffer
+            } catch (IOException e) {
+                throw new SerialIOException("Couldn't write to outputstream of" + this.portName);
             }
-            debug(LogEvent.SEND, message);
-            os.write(asciiMsg);
-            os.flush(); // flush the buffer
-        } catch (IOException e) {
-            throw new SerialIOException("Couldn't write to outputstream of" + this.portName);
         }
 
         return;
@@ -232,6 +304,7 @@ message from serial port is received.
      * Closes this serial port and it's streams
      */
     public void closePort() {
+        dispatcher.stop();
         if (sPort != null) {
             this.sPort.close();
             try {
@@ -250,14 +323,17 @@ message from serial port is received.
     /**
      * Closes all open serialports and their streams
      */
-    public static void closeAllPorts() {
+    public static synchronized void closeAllPorts() {
         for (int i = 0; i < openPorts.size(); i++) {
             openPorts.elementAt(i).closePort();
         }
     }
 
     /**
-     * This method is run when a serial message is received from serial port. It generates a new SerialIOEvent.
+     * This method is run when data is received from serial port. Reads all available bytes at once and generates a
+     * new SerialIOEvent for every complete frame. An incomplete frame is kept until the rest of it arrives. On ports
+     * without a frame terminator the frame is also passed on after the device has been silent for a few character
+     * times, so that the unterminated messages get through; that is done by a timer, not by this thread.
      */
     public void serialEvent(SerialPortEvent event) {
         //System.out.println("New message arrived to port: " + this.portName); //DEBUG
@@ -273,37 +349,64 @@ message from serial port is received.
         case SerialPortEvent.OUTPUT_BUFFER_EMPTY:
             break;
         case SerialPortEvent.DATA_AVAILABLE:
-            StringBuffer inputBuffer = new StringBuffer();
-            int newData = 0;
-            byte[] newByte = new byte[1];
-
-            while (newData != -1) {
+            synchronized (decoder) {
                 try {
-                    newData = is.read();
-                    if (newData == -1) {
-                        break;
-                    }
-                    newByte[0] = new Integer(newData).byteValue();
-                    inputBuffer.append(new String(newByte, "US-ASCII"));
-
+                    readFrames();
                 } catch (IOException ex) {
                     System.err.println(ex);
-                    return;
                 }
+                scheduleIdleFlush();
             }
+            break;
+        }
+        return;
+    }
 
-            fireSerialIOEvent(new String(inputBuffer));
+    /**
+     * Schedules the unterminated frame to be passed on after the idle gap, if the port has no frame terminator and the
+     * flush is not already scheduled. Must be called while holding the lock of decoder.
+     */
+    private void scheduleIdleFlush() {
+        if (idleGapMillis < 0 || idleFlushScheduled || !decoder.hasPartialFrame()) {
+            return;
+        }
+        idleFlushScheduled = true;
+        idleFlushTimer.schedule(new TimerTask() {
+            public void run() {
+                synchronized (decoder) {
+                    idleFlushScheduled = false;
+                    fireFrame(decoder.flushIfIdle(System.nanoTime()));
+                    scheduleIdleFlush();        // more bytes arrived during the gap
+                }
+            }
+        }, idleGapMillis);
+    }
 
-            //System.out.println("sending: " + new String(inputBuffer)); //debug
-            debug(LogEvent.REVEIVE, inputBuffer.toString());
+    /**
+     * Reads all available bytes and fires an event for each frame that was completed. The frame terminators are
+     * included in the fired messages. Must be called while holding the lock of decoder.
+     *
+     * @throws IOException if reading the inputstream fails.
+     */
+    private void readFrames() throws IOException {
+        int count;
+        while (is.available() > 0 && (count = is.read(readBuffer, 0, readBuffer.length)) > 0) {
+            for (String message : decoder.decode(readBuffer, count, System.nanoTime())) {
+                fireFrame(message);
+            }
+        }
+    }
 
-            break;
+    private void fireFrame(String message) {
+        if (message != null) {
+            fireSerialIOEvent(message);
+            debug(LogEvent.REVEIVE, message);
         }
-        return;
     }
 
     /**
-     * Adds a MeasurementListener to the project.
+     * Adds a SerialIOListener to the port. The listener will be notified in the dispatcher thread of this port, so it
+     * must not block for long and it must not touch Swing components. Meant for the device drivers.
      *
      * @param l the listener to be added.
      */
@@ -312,7 +415,7 @@ message from serial port is received.
     }
 
     /**
-     * Removes a MeasurementListener from the project.
+     * Removes a SerialIOListener from the port.
      *
      * @param l the listener to be removed
      */
@@ -321,24 +424,20 @@ message from serial port is received.
     }
 
     /**
-     * Notifies all listeners that have registered for MeasurementEvents.
+     * Returns the listeners that are notified in the dispatcher thread.
+     */
+    synchronized SerialIOListener[] getSerialIOListeners() {
+        return listenerList.getListeners(SerialIOListener.class);
+    }
+
+    /**
+     * Notifies all listeners that have registered for SerialIOEvents. The event is passed to the dispatcher of this
+     * port, which will block if too many events are waiting to be delivered.
      *
-     * @param message
+     * @param message the received message.
      */
-    private synchronized void fireSerialIOEvent(String message) {
-        final SerialIOEvent event = new SerialIOEvent(this, message);
-        final SerialIOListener[] listeners = listenerList.getListeners(SerialIOListener.class);
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                for (SerialIOListener l : listeners) {
-                    try {
-                        l.serialIOEvent(event);
-                    } catch (Throwable t) {
-                        t.printStackTrace();
-                    }
-                }
-            }
-        });
+    private void fireSerialIOEvent(String message) {
+        dispatcher.put(new SerialIOEvent(this, message));
     }
 
     /**
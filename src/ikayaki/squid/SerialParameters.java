@@ -66,6 +66,18 @@ public class SerialParameters {
      */
     private int parity;
 
+    /**
+     * Tells if the device behind the port needs a fixed delay between messages, instead of a delay that is calculated
+     * from the baud rate.
+     */
+    private boolean fixedDelay;
+
+    /**
+     * The character that ends every message sent by the device behind the port, or FrameDecoder.NO_TERMINATOR if the
+     * messages are separated only by a pause.
+     */
+    private int frameTerminator;
+
     /**
      * Creates a SerialParameter object containing settings for serial port communication.
      *
@@ -79,6 +91,42 @@ public class SerialParameters {
      */
     public SerialParameters(String portName, int baudRate, int flowControlIn, int flowControlOut,
                             int databits, int stopbits, int parity) {
+        this(portName, baudRate, flowControlIn, flowControlOut, databits, stopbits, parity, false);
+    }
+
+    /**
+     * Creates a SerialParameter object containing settings for serial port communication.
+     *
+     * @param portName       The name of the serial port.
+     * @param baudRate       The baud rate.
+     * @param flowControlIn  Type of flow control for receiving.
+     * @param flowControlOut Type of flow control for sending.
+     * @param databits       The number of data bits.
+     * @param stopbits       The number of stop bits.
+     * @param parity         The type of parity.
+     * @param fixedDelay     true if the device needs a fixed delay between messages.
+     */
+    public SerialParameters(String portName, int baudRate, int flowControlIn, int flowControlOut,
+                            int databits, int stopbits, int parity, boolean fixedDelay) {
+        this(portName, baudRate, flowControlIn, flowControlOut, databits, stopbits, parity, fixedDelay,
+                FrameDecoder.NO_TERMINATOR);
+    }
+
+    /**
+     * Creates a SerialParameter object containing settings for serial port communication.
+     *
+     * @param portName        The name of the serial port.
+     * @param baudRate        The baud rate.
+     * @param flowControlIn   Type of flow control for receiving.
+     * @param flowControlOut  Type of flow control for sending.
+     * @param databits        The number of data bits.
+     * @param stopbits        The number of stop bits.
+     * @param parity          The type of parity.
+     * @param fixedDelay      true if the device needs a fixed delay between messages.
+     * @param frameTerminator the character that ends the received messages, or FrameDecoder.NO_TERMINATOR.
+     */
+    public SerialParameters(String portName, int baudRate, int flowControlIn, int flowControlOut,
+                            int databits, int stopbits, int parity, boolean fixedDelay, int frameTerminator) {
         this.portName = portName;
         this.baudRate = baudRate;
         this.flowControlIn = flowControlIn;
@@ -86,6 +134,8 @@ public class SerialParameters {
         this.databits = databits;
         this.stopbits = stopbits;
         this.parity = parity;
+        this.fixedDelay = fixedDelay;
+        this.frameTerminator = frameTerminator;
     }
 
     /**
@@ -102,6 +152,8 @@ public class SerialParameters {
         this.databits = SerialPort.DATABITS_8;
         this.stopbits = SerialPort.STOPBITS_1;
         this.parity = SerialPort.PARITY_NONE;
+        this.fixedDelay = false;
+        this.frameTerminator = FrameDecoder.NO_TERMINATOR;
     }
 
     public String getPortName() {
@@ -131,4 +183,29 @@ public class SerialParameters {
     public int getParity() {
         return parity;
     }
+
+    public boolean isFixedDelay() {
+        return fixedDelay;
+    }
+
+    public int getFrameTerminator() {
+        return frameTerminator;
+    }
+
+    /**
+     * Returns the time it takes to transmit one character, in nanoseconds. A character consists of the start bit, data
+     * bits, parity bit and stop bits. One and a half stop bits are rounded up to two.
+     */
+    public long getCharacterNanos() {
+        int bits = 1 + databits;
+        if (parity != SerialPort.PARITY_NONE) {
+            bits++;
+        }
+        if (stopbits == SerialPort.STOPBITS_1) {
+            bits += 1;
+        } else {
+            bits += 2;
+        }
+        return 1000000000L * bits / Math.max(baudRate, 1);
+    }
 }
@@ -24,16 +24,33 @@ package ikayaki.squid;
 
 import ikayaki.Project;
 
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.EventListenerList;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Offers an interface for controlling the SQUID system. Reads settings from the Settings class. Creates instances of
  * the degausser, handler and magnetometer classes and offers handles for them.
+ * <p/>
+ * The devices are on their own serial ports, so they are initialized at the same time, each in its own thread. Each
+ * device can be used as soon as it is ready, without waiting for the others.
  *
- * @author Aki Korpua
+ * @author Aki Korpua, agent
  */
 public class Squid {
 
+    /**
+     * The devices of the Squid.
+     */
+    public enum Device {
+        DEGAUSSER, HANDLER, MAGNETOMETER
+    }
+
     /**
      * Instance of the Squid interface.
      */
@@ -45,58 +62,288 @@ public class Squid {
     private Project owner;
 
     /**
-     * Instance of the degausser interface.
+     * Instance of the degausser interface, or null if it is not yet ready.
+     */
+    private volatile Degausser degausser;
+
+    /**
+     * Instance of the handler interface, or null if it is not yet ready.
+     */
+    private volatile Handler handler;
+
+    /**
+     * Instance of the magnetometer interface, or null if it is not yet ready.
+     */
+    private volatile Magnetometer magnetometer;
+
+    /**
+     * Runs the commands sent to the devices, each device in its own worker thread.
+     */
+    private final DeviceExecutor executor = new DeviceExecutor("Squid");
+
+    /**
+     * The initializations of the devices.
+     */
+    private final FutureTask<Degausser> degausserInit;
+    private final FutureTask<Handler> handlerInit;
+    private final FutureTask<Magnetometer> magnetometerInit;
+
+    /**
+     * Completes when all devices have been initialized.
      */
-    private Degausser degausser;
+    private final FutureTask<Squid> ready;
 
     /**
-     * Instance of the handler interface.
+     * How long in milliseconds the initialization of each device took, indexed by Device.ordinal(). -1 if it has not
+     * yet finished.
      */
-    private Handler handler;
+    private final long[] initTimes = {-1, -1, -1};
 
     /**
-     * Instance of the magnetometer interface.
+     * Listeners that are notified when a device becomes ready or fails.
      */
-    private Magnetometer magnetometer;
+    private final EventListenerList listenerList = new EventListenerList();
 
     /**
-     * Returns a reference to the Squid. If it has not yet been created, will create one.
+     * Returns a reference to the Squid. If it has not yet been created, will create one. Waits until all the devices
+     * have been initialized.
+     *
+     * @throws IOException if initializing any of the devices failed.
      */
-    public static synchronized Squid instance() throws IOException {
+    public static Squid instance() throws IOException {
+        Squid squid = startInstance();
+        try {
+            return squid.getReady().get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while initializing the SQUID: " + e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Returns a reference to the Squid. If it has not yet been created, will create one and start initializing the
+     * devices. Does not wait for the devices to become ready. If the initialization of the previous Squid failed, a new
+     * one will be created, so that the initialization can be retried.
+     */
+    public static synchronized Squid startInstance() {
         if (instance == null) instance = new Squid();
         return instance;
     }
 
     /**
-     * Initializes the Squid interface. Creates instances of Degausser, Handler and Magnetometer.
+     * Initializes the Squid interface. Starts creating the instances of Degausser, Handler and Magnetometer in their
+     * own threads.
      */
-    private Squid() throws IOException {
+    private Squid() {
         owner = null;
-        try {
-            degausser = new Degausser();
-        } catch (SerialIOException ex) {
-            System.err.println("Cannot create degausser: " + ex);
-            throw new IOException("Cannot create degausser");
+        final long start = System.currentTimeMillis();
+
+        degausserInit = new FutureTask<Degausser>(new Callable<Degausser>() {
+            public Degausser call() throws IOException {
+                try {
+                    degausser = new Degausser();
+                    return degausser;
+                } catch (SerialIOException ex) {
+                    System.err.println("Cannot create degausser: " + ex);
+                    throw new IOException("Cannot create degausser");
+                } finally {
+                    deviceFinished(Device.DEGAUSSER, start);
+                }
+            }
+        });
+        handlerInit = new FutureTask<Handler>(new Callable<Handler>() {
+            public Handler call() throws IOException {
+                try {
+                    Handler h = new Handler(executor);
+                    h.setUp();
+                    handler = h;
+                    return handler;
+                } catch (SerialIOException ex) {
+                    System.err.println("Cannot create handler: " + ex);
+                    throw new IOException("Cannot create handler");
+                } finally {
+                    deviceFinished(Device.HANDLER, start);
+                }
+            }
+        });
+        magnetometerInit = new FutureTask<Magnetometer>(new Callable<Magnetometer>() {
+            public Magnetometer call() throws IOException {
+                try {
+                    magnetometer = new Magnetometer();
+                    return magnetometer;
+                } catch (SerialIOException ex) {
+                    System.err.println("Cannot create magnetometer: " + ex);
+                    throw new IOException("Cannot create magnetometer");
+                } finally {
+                    deviceFinished(Device.MAGNETOMETER, start);
+                }
+            }
+        });
+        ready = new FutureTask<Squid>(new Callable<Squid>() {
+            public Squid call() throws Exception {
+                try {
+                    degausserInit.get();
+                    handlerInit.get();
+                    magnetometerInit.get();
+                    return Squid.this;
+                } catch (ExecutionException e) {
+                    forgetInstance(Squid.this);
+                    throw (Exception) e.getCause();
+                }
+            }
+        });
+
+        new Thread(degausserInit, "Squid init " + Device.DEGAUSSER).start();
+        new Thread(handlerInit, "Squid init " + Device.HANDLER).start();
+        new Thread(magnetometerInit, "Squid init " + Device.MAGNETOMETER).start();
+        new Thread(ready, "Squid init").start();
+    }
+
+    /**
+     * Clears the singleton if it is the specified Squid, so that the next call to startInstance() will create a new
+     * one.
+     */
+    private static synchronized void forgetInstance(Squid squid) {
+        if (instance == squid) {
+            instance = null;
         }
-        try {
-            handler = new Handler();
-            handler.setUp();
-        } catch (SerialIOException ex) {
-            System.err.println("Cannot create handler: " + ex);
-            throw new IOException("Cannot create handler");
+    }
+
+    /**
+     * Records the initialization time of a device and notifies the listeners.
+     */
+    private void deviceFinished(Device device, long start) {
+        long time = System.currentTimeMillis() - start;
+        synchronized (initTimes) {
+            initTimes[device.ordinal()] = time;
         }
-        try {
-            magnetometer = new Magnetometer();
-        } catch (SerialIOException ex) {
-            System.err.println("Cannot create magnetometer: " + ex);
-            throw new IOException("Cannot create magnetometer");
+        System.err.println("Squid: " + device + " initialized in " + time + " ms");
+        fireStateChanged();
+    }
+
+    /**
+     * Returns a Future which completes when all devices have been initialized. If the initialization of any device
+     * fails, the Future will throw an ExecutionException caused by an IOException.
+     */
+    public Future<Squid> getReady() {
+        return ready;
+    }
+
+    /**
+     * Tells whether the specified device has been initialized successfully and can be used.
+     */
+    public boolean isReady(Device device) {
+        switch (device) {
+        case DEGAUSSER:
+            return degausser != null;
+        case HANDLER:
+            return handler != null;
+        case MAGNETOMETER:
+            return magnetometer != null;
+        default:
+            assert false;
+            return false;
+        }
+    }
+
+    /**
+     * Tells whether all devices have been initialized successfully.
+     */
+    public boolean isReady() {
+        return degausser != null && handler != null && magnetometer != null;
+    }
+
+    /**
+     * Returns how long it took to initialize the specified device.
+     *
+     * @return the time in milliseconds from the start of the initialization, or -1 if it has not yet finished.
+     */
+    public long getInitTime(Device device) {
+        synchronized (initTimes) {
+            return initTimes[device.ordinal()];
+        }
+    }
+
+    /**
+     * Adds a listener which is notified whenever a device has finished its initialization. The listener is notified
+     * in the initializing thread, not in the event dispatch thread.
+     *
+     * @param l the listener to be added.
+     */
+    public void addChangeListener(ChangeListener l) {
+        synchronized (listenerList) {
+            listenerList.add(ChangeListener.class, l);
         }
     }
 
+    /**
+     * Removes a ChangeListener from the Squid.
+     *
+     * @param l the listener to be removed.
+     */
+    public void removeChangeListener(ChangeListener l) {
+        synchronized (listenerList) {
+            listenerList.remove(ChangeListener.class, l);
+        }
+    }
+
+    /**
+     * Notifies all listeners that the readiness of the devices has changed.
+     */
+    private void fireStateChanged() {
+        ChangeListener[] listeners;
+        synchronized (listenerList) {
+            listeners = listenerList.getListeners(ChangeListener.class);
+        }
+        ChangeEvent event = new ChangeEvent(this);
+        for (ChangeListener l : listeners) {
+            try {
+                l.stateChanged(event);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops all devices that are ready: the commands waiting in the executor are discarded, the handler is stopped and
+     * the commands waiting for answers are cancelled. Used when a measurement is aborted.
+     * <p/>
+     * The devices are aborted before their commands in the executor are cancelled, so that the interrupted commands
+     * will see that they were aborted.
+     */
+    public void abort() {
+        Degausser degausser = getDegausser();
+        Handler handler = getHandler();
+        Magnetometer magnetometer = getMagnetometer();
+        if (handler != null) {
+            handler.abort();        // cancels the commands of the handler itself
+        } else {
+            executor.cancel(Device.HANDLER);
+        }
+        if (degausser != null) {
+            degausser.abort();
+        }
+        if (magnetometer != null) {
+            magnetometer.abort();
+        }
+        executor.cancel(Device.DEGAUSSER);
+        executor.cancel(Device.MAGNETOMETER);
+    }
+
+    /**
+     * Returns the executor which runs the commands sent to the devices. Manual commands should be submitted to it
+     * instead of starting new threads, so that they will not conflict with each other.
+     */
+    public DeviceExecutor getExecutor() {
+        return executor;
+    }
+
     /**
      * Returns an interface for controlling the degausser.
      *
-     * @return Handler for Degausser if available
+     * @return Handler for Degausser if available, or null if it is not yet ready.
      */
     public Degausser getDegausser() {
         return this.degausser;
@@ -105,7 +352,7 @@ public class Squid {
     /**
      * Returns an interface for controlling the handler.
      *
-     * @return Handler for Handler if available
+     * @return Handler for Handler if available, or null if it is not yet ready.
      */
     public Handler getHandler() {
         return this.handler;
@@ -114,7 +361,7 @@ public class Squid {
     /**
      * Returns an interface for controlling the magnetometer.
      *
-     * @return Handler for Magnetometer if available
+     * @return Handler for Magnetometer if available, or null if it is not yet ready.
      */
     public Magnetometer getMagnetometer() {
         return this.magnetometer;
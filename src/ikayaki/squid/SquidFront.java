@@ -190,6 +190,7 @@ public class SquidFront extends JFrame {
             public void actionPerformed(ActionEvent e) {
                 String command = hRawCommand.getText().trim().toUpperCase();
                 try {
+                    squid.getHandler().invalidateRegisters();
                     squid.getHandler().serialIO.writeMessage(command);
                 } catch (SerialIOException e1) {
                     e1.printStackTrace();
@@ -210,6 +211,7 @@ public class SquidFront extends JFrame {
             public void actionPerformed(ActionEvent e) {
                 String command = dRawCommand.getText().trim().toUpperCase();
                 try {
+                    squid.getDegausser().invalidateState();
                     squid.getDegausser().serialIO.writeMessage(command + "\r");
                 } catch (SerialIOException e1) {
                     e1.printStackTrace();
@@ -603,6 +605,8 @@ public class SquidFront extends JFrame {
 
                 } catch (IOException ex) {
                     magnetometerLog.append("pulseReset failed\r");
+                } catch (InterruptedException ex) {
+                    magnetometerLog.append("readData interrupted\r");
                 }
             }
         });
@@ -666,6 +670,8 @@ public class SquidFront extends JFrame {
                     Squid.instance().getDegausser().demagnetizeY(Double.parseDouble(param1.getText()));
                 } catch (IOException ex) {
                     degausserLog.append("demagnetizeY failed\r");
+                } catch (InterruptedException ex) {
+                    degausserLog.append("demagnetizeY interrupted\r");
                 }
             }
         });
@@ -677,6 +683,8 @@ public class SquidFront extends JFrame {
                     Squid.instance().getDegausser().demagnetizeZ(Double.parseDouble(param1.getText()));
                 } catch (IOException ex) {
                     degausserLog.append("demagnetizeZ failed\r");
+                } catch (InterruptedException ex) {
+                    degausserLog.append("demagnetizeZ interrupted\r");
                 }
             }
         });
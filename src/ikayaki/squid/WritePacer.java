@@ -0,0 +1,101 @@
+/*
+ * WritePacer.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki.squid;
+
+/**
+ * Schedules the messages written to one serial port, so that the device will not be flooded with too many messages.
+ * The gap between two messages is calculated from the baud rate and the number of bytes that are still on the wire, so
+ * the delay depends on the length of the messages and not on their count. Ports that are marked to need a fixed delay
+ * will wait the same time before every message.
+ *
+ * @author agent
+ */
+class WritePacer {
+
+    /**
+     * Delay in milliseconds before every message, if the port needs a fixed delay. 50 msecs seems to work fine with
+     * baudrate of 1200.
+     */
+    private static final int FIXED_DELAY_MILLIS = 50;
+
+    /**
+     * Number of character times to wait after the previous message has left the wire, before sending the next one.
+     * Gives the device time to react to the previous message.
+     */
+    private static final int GUARD_CHARACTERS = 2;
+
+    /**
+     * The time it takes to transmit one character, in nanoseconds.
+     */
+    private final long characterNanos;
+
+    /**
+     * true if a fixed delay is used instead of the calculated one.
+     */
+    private final boolean fixedDelay;
+
+    /**
+     * The time (as given by System.nanoTime()) when the last written byte has left the wire.
+     */
+    private long wireFreeAt = System.nanoTime();
+
+    /**
+     * Creates a pacer for a serial port.
+     *
+     * @param parameters the parameters with which the port was opened.
+     */
+    public WritePacer(SerialParameters parameters) {
+        this.fixedDelay = parameters.isFixedDelay();
+        this.characterNanos = parameters.getCharacterNanos();
+    }
+
+    /**
+     * Waits until it is allowed to send the next message and reserves the wire for it. The caller should hold the lock
+     * of this object also while writing the message, so that the messages will be written in the order they were
+     * paced. If the waiting is interrupted, the message may be sent early, but the interrupted status of the current
+     * thread is preserved.
+     *
+     * @param bytes the length of the message that will be sent.
+     */
+    public synchronized void pace(int bytes) {
+        if (fixedDelay) {
+            try {
+                Thread.sleep(FIXED_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        // wait until the previous messages have left the wire
+        long wait = wireFreeAt + GUARD_CHARACTERS * characterNanos - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        wireFreeAt = Math.max(System.nanoTime(), wireFreeAt) + bytes * characterNanos;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * RunningStatistics.java
+ *
+ * Copyright (C) 2005 Project SQUID, http://www.cs.helsinki.fi/group/squid/
+ *
+ * This file is part of Ikayaki.
+ *
+ * Ikayaki is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Ikayaki is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Ikayaki; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package ikayaki.util;
+
+/**
+ * Calculates the mean and variance of a series of values one value at a time, without storing the values. Uses
+ * Welford's method, which does not lose precision when the values are large compared to their variance.
+ *
+ * @author agent
+ */
+public class RunningStatistics {
+
+    private int count = 0;
+    private double mean = 0.0;
+
+    /**
+     * Sum of the squared differences from the current mean.
+     */
+    private double m2 = 0.0;
+
+    /**
+     * Adds a value to the statistics.
+     *
+     * @param value the value to add.
+     */
+    public void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+    }
+
+    /**
+     * Removes all values from the statistics.
+     */
+    public void clear() {
+        count = 0;
+        mean = 0.0;
+        m2 = 0.0;
+    }
+
+    /**
+     * Returns the number of values added.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the mean of the values, or NaN if no values have been added.
+     */
+    public double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * Returns the sample variance of the values, or NaN if less than two values have been added.
+     */
+    public double getVariance() {
+        return count > 1 ? m2 / (count - 1) : Double.NaN;
+    }
+
+    /**
+     * Returns the sample standard deviation of the values, or NaN if less than two values have been added.
+     */
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * Returns the standard error of the mean, or NaN if less than two values have been added.
+     */
+    public double getStandardError() {
+        return Math.sqrt(getVariance() / count);
+    }
+}
@@ -0,0 +1,141 @@
+package test.ikayaki;
+
+import ikayaki.MeasurementPlan;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.List;
+
+import static ikayaki.MeasurementPlan.Position.*;
+import static ikayaki.MeasurementPlan.Type.*;
+import static ikayaki.MeasurementResult.Type.NOISE;
+import static ikayaki.MeasurementResult.Type.SAMPLE;
+
+/**
+ * Test class of MeasurementPlan
+ *
+ * @author agent
+ */
+public class MeasurementPlanTest extends TestCase {
+
+    public static Test suite() {
+        return new TestSuite(MeasurementPlanTest.class);
+    }
+
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    /**
+     * Returns the operations of a plan as a string, one toString() per operation separated by commas.
+     */
+    private static String describe(MeasurementPlan plan) {
+        StringBuffer sb = new StringBuffer();
+        for (MeasurementPlan.Operation op : plan) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(op);
+        }
+        return sb.toString();
+    }
+
+    public void testRedundantRotationsAreRemoved() {
+        MeasurementPlan plan = new MeasurementPlan()
+                .rotate(0).checkpoint()
+                .rotate(90).checkpoint()
+                .rotate(180).checkpoint()
+                .read(SAMPLE).checkpoint()
+                .rotate(180).checkpoint()
+                .read(SAMPLE);
+        assertEquals("CHECKPOINT, ROTATE 180, CHECKPOINT, READ SAMPLE 180, CHECKPOINT, READ SAMPLE 180",
+                describe(plan.withoutRedundantRotations(0)));
+    }
+
+    public void testRedundantMovesAreMerged() {
+        MeasurementPlan plan = new MeasurementPlan()
+                .move(BACKGROUND).checkpoint()
+                .move(DEGAUSSER_Z).checkpoint()
+                .move(MEASUREMENT).checkpoint()
+                .read(SAMPLE);
+        assertEquals("CHECKPOINT, MOVE MEASUREMENT, CHECKPOINT, READ SAMPLE 0",
+                describe(plan.withMergedMoves(BACKGROUND)));
+        assertEquals(describe(plan.withMergedMoves(BACKGROUND)), describe(plan.withMergedMoves(null)));
+    }
+
+    public void testOptimizedPlanStartsWhereTheHandlerIs() {
+        MeasurementPlan plan = MeasurementPlan.forStep(0.0, false, 1, true, false).optimize(0, BACKGROUND);
+        List<MeasurementPlan.Operation> ops = plan.getOperations();
+
+        // no rotation or move to where the handler already is
+        assertEquals(CHECKPOINT, ops.get(0).getType());
+        assertEquals(RESET, ops.get(1).getType());
+        assertEquals(READ, ops.get(2).getType());
+        assertEquals(NOISE, ops.get(2).getResultType());
+        for (int i = 1; i < ops.size(); i++) {
+            assertFalse(ops.get(i - 1).getType() == CHECKPOINT && ops.get(i).getType() == CHECKPOINT);
+        }
+        assertEquals(1, plan.getCycles());
+    }
+
+    public void testOptimizingKeepsTheReadings() {
+        MeasurementPlan plan = MeasurementPlan.forStep(10.0, true, 2, true, true);
+        MeasurementPlan optimized = plan.optimize(MeasurementPlan.UNKNOWN, null);
+        assertEquals(countReads(plan), countReads(optimized));
+        assertEquals(2 + 2 * 4, countReads(optimized));
+        assertEquals(plan.getCycles(), optimized.getCycles());
+    }
+
+    private static int countReads(MeasurementPlan plan) {
+        int count = 0;
+        for (MeasurementPlan.Operation op : plan) {
+            if (op.getType() == READ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testConflicts() {
+        List<MeasurementPlan.Operation> ops = new MeasurementPlan()
+                .move(MEASUREMENT).rotate(90).demagnetize('Z', 10.0).reset().read(SAMPLE).checkpoint()
+                .getOperations();
+        MeasurementPlan.Operation move = ops.get(0);
+        MeasurementPlan.Operation rotate = ops.get(1);
+        MeasurementPlan.Operation demag = ops.get(2);
+        MeasurementPlan.Operation reset = ops.get(3);
+        MeasurementPlan.Operation read = ops.get(4);
+        MeasurementPlan.Operation checkpoint = ops.get(5);
+
+        // the magnetometer may be reset while the handler moves
+        assertFalse(reset.conflictsWith(move));
+        assertFalse(move.conflictsWith(reset));
+        assertFalse(reset.conflictsWith(rotate));
+
+        // the same device, reading, demagnetizing and checkpoints are run alone
+        assertTrue(move.conflictsWith(rotate));
+        assertTrue(read.conflictsWith(move));
+        assertTrue(move.conflictsWith(read));
+        assertTrue(read.conflictsWith(reset));
+        assertTrue(demag.conflictsWith(move));
+        assertTrue(reset.conflictsWith(demag));
+        assertTrue(checkpoint.conflictsWith(reset));
+        assertTrue(move.conflictsWith(checkpoint));
+    }
+
+    public void testInvalidAngles() {
+        try {
+            MeasurementPlan.forStep(0.0, false, 1, false, false, new int[0]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            MeasurementPlan.forStep(0.0, false, 1, false, false, new int[]{0, 360});
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package test.ikayaki;
+
+import ikayaki.Ikayaki;
+import ikayaki.MeasurementQueue;
+import ikayaki.Project;
+import ikayaki.squid.Squid;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.io.File;
+
+/**
+ * Test class of MeasurementQueue. The tests do not start any measurements, so they do not need the SQUID devices.
+ *
+ * @author agent
+ */
+public class MeasurementQueueTest extends TestCase {
+
+    private MeasurementQueue queue;
+    private Project project1;
+    private Project project2;
+    private int changes;
+
+    public static Test suite() {
+        return new TestSuite(MeasurementQueueTest.class);
+    }
+
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp() throws Exception {
+        queue = new MeasurementQueue(Squid.startInstance());
+        queue.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                changes++;
+            }
+        });
+        project1 = createProject();
+        project2 = createProject();
+        changes = 0;
+    }
+
+    protected void tearDown() throws Exception {
+        closeProject(project1);
+        closeProject(project2);
+    }
+
+    private static Project createProject() throws Exception {
+        File file = File.createTempFile("queue", Ikayaki.FILE_TYPE);
+        file.delete();
+        file.deleteOnExit();
+        Project project = Project.createAFProject(file);
+        assertNotNull(project);
+        return project;
+    }
+
+    private static void closeProject(Project project) {
+        if (!project.isClosed()) {
+            Project.closeProject(project);
+        }
+    }
+
+    public void testAdd() {
+        assertTrue(queue.add(project1));
+        assertFalse("nothing to measure before the end step", queue.add(project2, 0));
+        assertEquals(1, queue.getEntries().size());
+        assertSame(project1, queue.getEntries().get(0).getProject());
+        assertEquals(1, changes);
+
+        Project.closeProject(project2);
+        assertFalse("closed project", queue.add(project2));
+        assertEquals(MeasurementQueue.State.IDLE, queue.getState());
+    }
+
+    public void testEmptyQueueDoesNotStart() {
+        assertFalse(queue.start());
+        assertEquals(MeasurementQueue.State.IDLE, queue.getState());
+        assertEquals(0, changes);
+        assertEquals(0, queue.getIdleTime());
+        assertTrue(Double.isNaN(queue.getUtilization()));
+    }
+
+    public void testStartAndStop() {
+        queue.add(project1);
+        assertTrue(queue.start());
+        assertEquals(MeasurementQueue.State.WAITING, queue.getState());
+        assertFalse("already started", queue.start());
+
+        queue.stop();
+        assertEquals(MeasurementQueue.State.IDLE, queue.getState());
+        assertEquals(1, queue.getEntries().size());
+        assertEquals(0, queue.getBusyTime());
+        assertEquals(3, changes);
+    }
+
+    public void testRemovingTheLastEntryStopsWaiting() {
+        queue.add(project1);
+        queue.add(project2);
+        queue.start();
+
+        assertTrue(queue.remove(0));
+        assertEquals(MeasurementQueue.State.WAITING, queue.getState());
+        assertSame(project2, queue.getEntries().get(0).getProject());
+        assertTrue(queue.remove(0));
+        assertEquals(MeasurementQueue.State.IDLE, queue.getState());
+    }
+
+    public void testConfirmingNeedsWaiting() {
+        queue.add(project1);
+        assertFalse(queue.confirmSampleChange());
+        assertEquals(MeasurementQueue.State.IDLE, queue.getState());
+    }
+
+    public void testClosedProjectIsSkipped() {
+        queue.add(project1);
+        queue.add(project2);
+        queue.start();
+        Project.closeProject(project1);
+
+        assertFalse(queue.confirmSampleChange());
+        assertEquals(MeasurementQueue.State.WAITING, queue.getState());
+        assertEquals(1, queue.getEntries().size());
+        assertSame(project2, queue.getEntries().get(0).getProject());
+
+        Project.closeProject(project2);
+        assertFalse(queue.confirmSampleChange());
+        assertEquals(MeasurementQueue.State.IDLE, queue.getState());
+        assertEquals(0, queue.getEntries().size());
+    }
+}
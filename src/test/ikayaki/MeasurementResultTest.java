@@ -0,0 +1,71 @@
+package test.ikayaki;
+
+import ikayaki.MeasurementResult;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Test class of MeasurementResult
+ *
+ * @author agent
+ */
+public class MeasurementResultTest extends TestCase {
+
+    private Document document;
+
+    public static Test suite() {
+        return new TestSuite(MeasurementResultTest.class);
+    }
+
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp() throws Exception {
+        document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    }
+
+    public void testStandardErrorsAreSaved() {
+        MeasurementResult result = new MeasurementResult(MeasurementResult.Type.SAMPLE, 90, 1.0, 2.0, 3.0,
+                0.1, 0.2, 0.3);
+        MeasurementResult loaded = new MeasurementResult(result.getElement(document));
+
+        assertEquals(MeasurementResult.Type.SAMPLE, loaded.getType());
+        assertEquals(90, loaded.getRotation());
+        assertEquals(1.0, loaded.getRawX(), 0.0);
+        assertEquals(2.0, loaded.getRawY(), 0.0);
+        assertEquals(3.0, loaded.getRawZ(), 0.0);
+        assertEquals(0.1, loaded.getRawErrorX(), 0.0);
+        assertEquals(0.2, loaded.getRawErrorY(), 0.0);
+        assertEquals(0.3, loaded.getRawErrorZ(), 0.0);
+    }
+
+    public void testUnknownStandardErrorsAreNotSaved() {
+        MeasurementResult result = new MeasurementResult(MeasurementResult.Type.NOISE, 0, 1.0, 2.0, 3.0);
+        Element element = result.getElement(document);
+        assertFalse(element.hasAttribute("errorx"));
+
+        MeasurementResult loaded = new MeasurementResult(element);
+        assertTrue(Double.isNaN(loaded.getRawErrorX()));
+        assertTrue(Double.isNaN(loaded.getRawErrorY()));
+        assertTrue(Double.isNaN(loaded.getRawErrorZ()));
+    }
+
+    public void testOldResultWithoutStandardErrors() {
+        Element element = document.createElement("result");
+        element.setAttribute("type", "SAMPLE");
+        element.setAttribute("rotation", "180");
+        element.setAttribute("x", "1.0");
+        element.setAttribute("y", "2.0");
+        element.setAttribute("z", "3.0");
+
+        MeasurementResult loaded = new MeasurementResult(element);
+        assertEquals(180, loaded.getRotation());
+        assertTrue(Double.isNaN(loaded.getRawErrorX()));
+    }
+}
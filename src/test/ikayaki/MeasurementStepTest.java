@@ -0,0 +1,121 @@
+package test.ikayaki;
+
+import ikayaki.MeasurementResult;
+import ikayaki.MeasurementStep;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.vecmath.Vector3d;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Test class of MeasurementStep
+ *
+ * @author agent
+ */
+public class MeasurementStepTest extends TestCase {
+
+    private static final double DELTA = 1e-9;
+
+    /**
+     * The sample in sample coordinates, the offset of the magnetometer and the noise, used for the readings.
+     */
+    private static final double MX = 3.0, MY = 1.0, MZ = 2.0;
+    private static final double OX = 0.5, OY = -0.25;
+    private static final double NX = 0.01, NY = 0.02, NZ = 0.03;
+
+    private Document document;
+
+    public static Test suite() {
+        return new TestSuite(MeasurementStepTest.class);
+    }
+
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp() throws Exception {
+        document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    }
+
+    /**
+     * Creates a done step which has been measured at the specified angles.
+     */
+    private Element createStep(boolean offsetFitted, int... angles) {
+        Element step = document.createElement("step");
+        step.setAttribute("done", "1");
+        step.setAttribute("timestamp", "1000");
+        step.setAttribute("stepvalue", "10.0");
+        step.setAttribute("mass", "-1.0");
+        step.setAttribute("volume", "-1.0");
+        step.setAttribute("susceptibility", "-1.0");
+        if (offsetFitted) {
+            step.setAttribute("offsetfit", "1");
+        }
+        step.appendChild(new MeasurementResult(MeasurementResult.Type.NOISE, 0, NX, NY, NZ).getElement(document));
+        for (int angle : angles) {
+            double c = Math.cos(Math.toRadians(angle));
+            double s = Math.sin(Math.toRadians(angle));
+            step.appendChild(new MeasurementResult(MeasurementResult.Type.SAMPLE, angle,
+                    MX * c - MY * s + OX + NX, MX * s + MY * c + OY + NY, MZ + NZ).getElement(document));
+        }
+        return step;
+    }
+
+    private static void assertSampleResults(MeasurementStep step, double x, double y, double z) {
+        for (MeasurementResult result : step) {
+            if (result.getType() == MeasurementResult.Type.SAMPLE) {
+                assertEquals(x, result.getSampleX(), DELTA);
+                assertEquals(y, result.getSampleY(), DELTA);
+                assertEquals(z, result.getSampleZ(), DELTA);
+            }
+        }
+    }
+
+    public void testOffsetIsFittedAtQuarterTurns() {
+        MeasurementStep step = new MeasurementStep(createStep(true, 0, 90, 180, 270));
+        assertTrue(step.isOffsetFitted());
+
+        Vector3d offset = step.getOffset();
+        assertEquals(OX, offset.x, DELTA);
+        assertEquals(OY, offset.y, DELTA);
+        assertEquals(0.0, offset.z, DELTA);
+        assertSampleResults(step, MX, MY, MZ);
+    }
+
+    public void testOffsetIsFittedAtArbitraryAngles() {
+        MeasurementStep step = new MeasurementStep(createStep(true, 0, 120, 240));
+        Vector3d offset = step.getOffset();
+        assertEquals(OX, offset.x, DELTA);
+        assertEquals(OY, offset.y, DELTA);
+        assertSampleResults(step, MX, MY, MZ);
+    }
+
+    public void testOffsetCanNotBeFittedAtOneAngle() {
+        MeasurementStep step = new MeasurementStep(createStep(true, 0, 0));
+        assertEquals(new Vector3d(), step.getOffset());
+    }
+
+    public void testOldStepsAreNotFitted() {
+        MeasurementStep step = new MeasurementStep(createStep(false, 0, 90, 180, 270));
+        assertFalse(step.isOffsetFitted());
+        assertEquals(new Vector3d(), step.getOffset());
+
+        // the results at 0 degrees are only noise corrected
+        MeasurementResult first = step.getResult(1);
+        assertEquals(0, first.getRotation());
+        assertEquals(MX + OX, first.getSampleX(), DELTA);
+        assertEquals(MY + OY, first.getSampleY(), DELTA);
+    }
+
+    public void testOffsetFitIsSaved() {
+        MeasurementStep step = new MeasurementStep(createStep(true, 0, 90, 180, 270));
+        assertTrue(new MeasurementStep(step.getElement(document)).isOffsetFitted());
+
+        step = new MeasurementStep(createStep(false, 0, 90, 180, 270));
+        assertFalse(new MeasurementStep(step.getElement(document)).isOffsetFitted());
+    }
+}
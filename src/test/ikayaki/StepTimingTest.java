@@ -0,0 +1,70 @@
+package test.ikayaki;
+
+import ikayaki.StepTiming;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Test class of StepTiming
+ *
+ * @author agent
+ */
+public class StepTimingTest extends TestCase {
+
+    private static final long MS = 1000000L;
+
+    public static Test suite() {
+        return new TestSuite(StepTimingTest.class);
+    }
+
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public void testHistogram() {
+        StepTiming timing = new StepTiming();
+        timing.add("MOVE", 100 * MS);
+        timing.add("MOVE", 300 * MS);
+
+        StepTiming.Histogram move = timing.getHistogram("MOVE");
+        assertEquals(2, move.getCount());
+        assertEquals(400 * MS, move.getTotal());
+        assertEquals(200.0 * MS, move.getMean(), 0.0);
+        assertEquals(100 * MS, move.getMin());
+        assertEquals(300 * MS, move.getMax());
+        assertNull(timing.getHistogram("DEMAG"));
+
+        int sum = 0;
+        for (int i = 0; i < StepTiming.getBuckets(); i++) {
+            sum += move.getBucket(i);
+        }
+        assertEquals(2, sum);
+    }
+
+    public void testXmlRoundTrip() throws Exception {
+        StepTiming timing = new StepTiming();
+        timing.add("MOVE", 100 * MS);
+        timing.add("MOVE", 5000 * MS);
+        timing.add(StepTiming.SETTLE, 20 * MS);
+
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        StepTiming loaded = new StepTiming(timing.getElement(document));
+
+        assertEquals(timing.getOperations(), loaded.getOperations());
+        for (String operation : timing.getOperations()) {
+            StepTiming.Histogram expected = timing.getHistogram(operation);
+            StepTiming.Histogram actual = loaded.getHistogram(operation);
+            assertEquals(expected.getCount(), actual.getCount());
+            assertEquals(expected.getTotal(), actual.getTotal());
+            assertEquals(expected.getMin(), actual.getMin());
+            assertEquals(expected.getMax(), actual.getMax());
+            for (int i = 0; i < StepTiming.getBuckets(); i++) {
+                assertEquals(expected.getBucket(i), actual.getBucket(i));
+            }
+        }
+    }
+}
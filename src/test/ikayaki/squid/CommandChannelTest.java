@@ -0,0 +1,88 @@
+package test.ikayaki.squid;
+
+import ikayaki.squid.CommandChannel;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.concurrent.Future;
+
+/**
+ * Test class of CommandChannel
+ *
+ * @author agent
+ */
+public class CommandChannelTest extends TestCase {
+
+    private CommandChannel channel;
+
+    public static Test suite() {
+        return new TestSuite(CommandChannelTest.class);
+    }
+
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp() throws Exception {
+        channel = new CommandChannel(null);
+    }
+
+    public void testRepliesGoToTheOldestRequestOfTheirFormat() throws Exception {
+        Future<String> number1 = channel.expect(CommandChannel.NUMBER);
+        Future<String> echo = channel.expect(CommandChannel.oneOf("DCAZ"));
+        Future<String> number2 = channel.expect(CommandChannel.NUMBER);
+
+        channel.deliver("DCAZ");
+        assertTrue(echo.isDone());
+        assertFalse(number1.isDone());
+
+        channel.deliver("+1.5E-3");
+        channel.deliver("-2");
+        assertEquals("DCAZ", echo.get());
+        assertEquals("+1.5E-3", number1.get());
+        assertEquals("-2", number2.get());
+    }
+
+    public void testAnyDoesNotTakeTheRepliesOfOtherRequests() throws Exception {
+        Future<String> any = channel.expect(CommandChannel.ANY);
+        Future<String> status = channel.expect(CommandChannel.startsWith("R", 2));
+
+        channel.deliver("RT");
+        assertFalse(any.isDone());
+        assertEquals("RT", status.get());
+
+        channel.deliver("DONE");
+        assertEquals("DONE", any.get());
+    }
+
+    public void testLateReplyOfCancelledRequestIsDiscarded() throws Exception {
+        Future<String> cancelled = channel.expect(CommandChannel.NUMBER);
+        Future<String> next = channel.expect(CommandChannel.NUMBER);
+        assertTrue(cancelled.cancel(false));
+
+        channel.deliver("1");
+        assertFalse(next.isDone());
+        channel.deliver("2");
+        assertEquals("2", next.get());
+    }
+
+    public void testCancelAll() {
+        Future<String> a = channel.expect(CommandChannel.NUMBER);
+        Future<String> b = channel.expect(CommandChannel.ANY);
+        channel.cancelAll();
+        assertTrue(a.isCancelled());
+        assertTrue(b.isCancelled());
+        assertNull(CommandChannel.get(a, 1));
+    }
+
+    public void testReplyFormats() {
+        assertTrue(CommandChannel.NUMBER.accepts("-1.0E+2"));
+        assertFalse(CommandChannel.NUMBER.accepts("DONE"));
+        assertTrue(CommandChannel.oneOf("DONE", "TRACK ERROR").accepts("TRACK ERROR"));
+        assertFalse(CommandChannel.oneOf("DONE").accepts("DONE!"));
+        assertTrue(CommandChannel.startsWith("L", 2).accepts("LO"));
+        assertFalse(CommandChannel.startsWith("L", 2).accepts("LOX"));
+        assertFalse(CommandChannel.startsWith("L", 2).accepts("SD"));
+    }
+}
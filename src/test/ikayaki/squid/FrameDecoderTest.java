@@ -0,0 +1,83 @@
+package test.ikayaki.squid;
+
+import ikayaki.squid.FrameDecoder;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.List;
+
+/**
+ * Test class of FrameDecoder
+ *
+ * @author agent
+ */
+public class FrameDecoderTest extends TestCase {
+
+    private static final long GAP = 1000;
+
+    public static Test suite() {
+        return new TestSuite(FrameDecoderTest.class);
+    }
+
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    private static List<String> decode(FrameDecoder decoder, String data, long now) {
+        byte[] bytes = data.getBytes();
+        return decoder.decode(bytes, bytes.length, now);
+    }
+
+    public void testSplitFrame() {
+        FrameDecoder decoder = new FrameDecoder('\r', 1024, GAP);
+        assertTrue(decode(decoder, "+1.23", 0).isEmpty());
+        assertTrue(decoder.hasPartialFrame());
+        List<String> frames = decode(decoder, "4E-5\r", 10);
+        assertEquals(1, frames.size());
+        assertEquals("+1.234E-5\r", frames.get(0));
+        assertFalse(decoder.hasPartialFrame());
+    }
+
+    public void testMergedFrames() {
+        FrameDecoder decoder = new FrameDecoder('\r', 1024, GAP);
+        List<String> frames = decode(decoder, "DONE\r+2.0\r-3", 0);
+        assertEquals(2, frames.size());
+        assertEquals("DONE\r", frames.get(0));
+        assertEquals("+2.0\r", frames.get(1));
+        assertTrue(decoder.hasPartialFrame());
+    }
+
+    public void testUnterminatedFrameIsFlushedAfterIdleGap() {
+        FrameDecoder decoder = new FrameDecoder('\r', 1024, GAP);
+        assertTrue(decode(decoder, "DON", 0).isEmpty());
+        assertNull(decoder.flushIfIdle(GAP - 1));
+        assertTrue(decode(decoder, "E", GAP - 1).isEmpty());
+        assertNull(decoder.flushIfIdle(2 * GAP - 2));
+        assertEquals("DONE", decoder.flushIfIdle(2 * GAP - 1));
+        assertFalse(decoder.hasPartialFrame());
+        assertNull(decoder.flushIfIdle(3 * GAP));
+    }
+
+    public void testPortWithoutTerminator() {
+        FrameDecoder decoder = new FrameDecoder(FrameDecoder.NO_TERMINATOR, 1024, GAP);
+        assertTrue(decode(decoder, "0\r1,", 0).isEmpty());
+        assertEquals("0\r1,", decoder.flushIfIdle(GAP));
+    }
+
+    public void testMaxLength() {
+        FrameDecoder decoder = new FrameDecoder('\r', 4, GAP);
+        List<String> frames = decode(decoder, "abcdefg\r", 0);
+        assertEquals(2, frames.size());
+        assertEquals("abcd", frames.get(0));
+        assertEquals("efg\r", frames.get(1));
+    }
+
+    public void testFlush() {
+        FrameDecoder decoder = new FrameDecoder('\r', 1024, GAP);
+        assertNull(decoder.flush());
+        decode(decoder, "x", 0);
+        assertEquals("x", decoder.flush());
+        assertNull(decoder.flush());
+    }
+}